@@ -12,7 +12,7 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
-import org.dacci.tsugumi.doc.Book;
+import org.dacci.tsugumi.format.BookSink;
 import org.dacci.tsugumi.format.BuildException;
 import org.dacci.tsugumi.format.Format;
 import org.dacci.tsugumi.format.FormatFactory;
@@ -37,6 +37,10 @@ public final class Main {
 
   private static final String OPTION_VERBOSE = "v";
 
+  private static final String OPTION_PARALLEL = "p";
+
+  private static final String OPTION_INCREMENTAL = "i";
+
   private static FormatFactory parserFactory = new AozoraFormatFactory();
 
   private static FormatFactory builderFactory = new EPubFormatFactory();
@@ -53,6 +57,12 @@ public final class Main {
     options.addOption(OPTION_HELP, "help", false, "Show help message.");
     options.addOption(OPTION_DIRECTORY, "directory", false, "Output as a directory.");
     options.addOption(OPTION_VERBOSE, "verbose", false, "Increase verbosity.");
+    options.addOption(OPTION_PARALLEL, "parallel", false, "Parse each file in parallel.");
+    options.addOption(
+        OPTION_INCREMENTAL,
+        "incremental",
+        false,
+        "Reparse only the chapters changed since last run.");
 
     try {
       commandLine = new GnuParser().parse(options, args);
@@ -80,20 +90,34 @@ public final class Main {
    * @param path
    */
   private static void processFile(Path path) {
+    BookSink sink = null;
+    boolean done = false;
+
     try {
-      LOG.info("Begin parsing {} . . .", path);
-      Book book = parserFactory.newInstance().parse(path);
+      Format parser = parserFactory.newInstance();
+      parser.setProperty(Format.PARALLEL, commandLine.hasOption(OPTION_PARALLEL));
+      parser.setProperty(Format.INCREMENTAL, commandLine.hasOption(OPTION_INCREMENTAL));
 
-      LOG.info("Building book . . .");
       Format builder = builderFactory.newInstance();
       builder.setProperty(Format.OUTPUT_PATH, path.getParent());
 
-      builder.build(book);
+      LOG.info("Begin parsing {} . . .", path);
+      sink = builder.newSink();
+      parser.parse(path, sink);
+      done = true;
       LOG.info("Done!");
     } catch (ParseException e) {
-      LOG.error("Parse error", e);
+      if (e.getCause() instanceof BuildException) {
+        LOG.error("Build error", e.getCause());
+      } else {
+        LOG.error("Parse error", e);
+      }
     } catch (BuildException e) {
       LOG.error("Build error", e);
+    } finally {
+      if (!done && sink != null) {
+        sink.abort();
+      }
     }
   }
 
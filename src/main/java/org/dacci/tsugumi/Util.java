@@ -52,6 +52,37 @@ public final class Util {
     return results;
   }
 
+  /**
+   * @param input
+   * @param c
+   * @param fromIndex
+   * @return
+   */
+  public static int indexOf(CharSequence input, char c, int fromIndex) {
+    for (int i = Math.max(fromIndex, 0), l = input.length(); i < l; ++i) {
+      if (input.charAt(i) == c) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * @param input
+   * @param c
+   * @return
+   */
+  public static int lastIndexOf(CharSequence input, char c) {
+    for (int i = input.length() - 1; i >= 0; --i) {
+      if (input.charAt(i) == c) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
   public static String safeFileName(String string) {
     string = string.replace('\\', '_');
     string = string.replace('/', '_');
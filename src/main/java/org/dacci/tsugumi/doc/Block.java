@@ -4,75 +4,61 @@
 
 package org.dacci.tsugumi.doc;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Set;
 
 /**
+ * An immutable block of elements.
+ *
  * @author dacci
  */
 public class Block extends BookElement {
 
-  private Chapter chapter = null;
+  private final StyleSet styles;
 
-  private final List<BookElement> elements = new ArrayList<>();
+  private final List<BookElement> elements;
 
-  private final Set<Style> styles = new LinkedHashSet<>();
-
-  public BookElement addElement(BookElement element) {
-    if (element == null) {
+  /**
+   * @param styles
+   * @param elements
+   */
+  public Block(StyleSet styles, List<? extends BookElement> elements) {
+    if (styles == null) {
       throw new NullPointerException();
     }
-    if (element.getParent() != null) {
-      throw new IllegalArgumentException();
-    }
 
-    if (!elements.add(element)) {
-      return null;
+    BookElement[] array = elements.toArray(new BookElement[elements.size()]);
+    for (BookElement element : array) {
+      if (element == null) {
+        throw new NullPointerException();
+      }
     }
 
-    element.setParent(this);
-
-    return element;
-  }
-
-  public Iterable<BookElement> elements() {
-    return Collections.unmodifiableCollection(elements);
-  }
-
-  /**
-   * @return the chapter
-   */
-  public Chapter getChapter() {
-    return chapter;
+    this.styles = styles;
+    this.elements =
+        array.length == 0
+            ? Collections.<BookElement>emptyList()
+            : Collections.unmodifiableList(Arrays.asList(array));
   }
 
   /**
-   * @param chapter the chapter to set
+   * @return the elements, which cannot be modified
    */
-  void setChapter(Chapter chapter) {
-    this.chapter = chapter;
+  public List<BookElement> elements() {
+    return elements;
   }
 
   /**
-   * @param style
    * @return
    */
-  public boolean addStyle(Style style) {
-    return styles.add(style);
-  }
-
-  /** */
-  public void clearStyles() {
-    styles.clear();
+  public StyleSet styles() {
+    return styles;
   }
 
-  /**
-   * @return
-   */
-  public Iterable<Style> styles() {
-    return Collections.unmodifiableCollection(styles);
+  /** {@inheritDoc} */
+  @Override
+  public <R, X extends Exception> R accept(ElementVisitor<R, X> visitor) throws X {
+    return visitor.visitBlock(this);
   }
 }
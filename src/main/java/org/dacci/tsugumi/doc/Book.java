@@ -4,67 +4,175 @@
 
 package org.dacci.tsugumi.doc;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
+ * An immutable book, made by a {@link Builder}.
+ *
+ * <p>Nothing in a book changes once built, so a book can be read by any number of threads at once
+ * and kept as long as needed. A book edited through {@link #toBuilder()} shares its chapters with
+ * the original.
+ *
+ * <p>A book may be read from files kept open while it is used, such as the archive its images and
+ * the chapters parsed lazily come from, which are closed by {@link #close()}. Those are not passed
+ * on to a builder made by {@link #toBuilder()}, so a book edited from another must not be used
+ * after the original is closed.
+ *
  * @author dacci
  */
-public class Book {
+public class Book implements Closeable {
 
-  private final EnumMap<BookProperty, String> properties = new EnumMap<>(BookProperty.class);
+  /** Collects the parts of a {@link Book}. */
+  public static class Builder {
 
-  private final List<Chapter> chapters = new ArrayList<>();
+    private final EnumMap<BookProperty, String> properties = new EnumMap<>(BookProperty.class);
 
-  private final Set<Path> resources = new LinkedHashSet<>();
+    private final List<Chapter> chapters = new ArrayList<>();
 
-  /**
-   * @param chapter
-   * @return
-   */
-  public Chapter addChapter(Chapter chapter) {
-    if (chapter == null) {
-      throw new NullPointerException();
+    private final Set<Path> resources = new LinkedHashSet<>();
+
+    private final List<Closeable> sources = new ArrayList<>();
+
+    /** */
+    public Builder() {}
+
+    /**
+     * @param book the book to start with
+     */
+    public Builder(Book book) {
+      properties.putAll(book.properties);
+      chapters.addAll(book.chapters);
+      resources.addAll(book.resources);
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return the value of {@code key} replaced, if any.
+     */
+    public String setProperty(BookProperty key, String value) {
+      return properties.put(key, value);
+    }
+
+    /**
+     * @param chapter
+     * @return
+     */
+    public Chapter addChapter(Chapter chapter) {
+      if (chapter == null) {
+        throw new NullPointerException();
+      }
+
+      chapters.add(chapter);
+
+      return chapter;
+    }
+
+    /**
+     * @param index
+     * @param chapter
+     * @return the chapter replaced.
+     */
+    public Chapter setChapter(int index, Chapter chapter) {
+      if (chapter == null) {
+        throw new NullPointerException();
+      }
+
+      return chapters.set(index, chapter);
+    }
+
+    /**
+     * @param path
+     * @return {@code true} if {@code path} was not added yet.
+     */
+    public boolean addResource(Path path) {
+      return resources.add(path.toAbsolutePath());
     }
-    if (chapter.getBook() != null) {
-      throw new IllegalArgumentException();
+
+    /**
+     * @param source a file the book is read from, to be closed with the book
+     */
+    public void addSource(Closeable source) {
+      if (source == null) {
+        throw new NullPointerException();
+      }
+
+      sources.add(source);
     }
 
-    if (!chapters.add(chapter)) {
-      return null;
+    /**
+     * @return a book of the parts collected so far.
+     */
+    public Book build() {
+      return new Book(this);
     }
+  }
+
+  private final Map<BookProperty, String> properties;
 
-    chapter.setBook(this);
+  private final List<Chapter> chapters;
 
-    return chapter;
+  private final Set<Path> resources;
+
+  private final List<Closeable> sources;
+
+  /**
+   * @param builder
+   */
+  private Book(Builder builder) {
+    properties =
+        builder.properties.isEmpty()
+            ? Collections.<BookProperty, String>emptyMap()
+            : Collections.unmodifiableMap(builder.properties.clone());
+    chapters =
+        builder.chapters.isEmpty()
+            ? Collections.<Chapter>emptyList()
+            : Collections.unmodifiableList(
+                Arrays.asList(builder.chapters.toArray(new Chapter[builder.chapters.size()])));
+    resources =
+        builder.resources.isEmpty()
+            ? Collections.<Path>emptySet()
+            : Collections.unmodifiableSet(new LinkedHashSet<>(builder.resources));
+    sources =
+        builder.sources.isEmpty()
+            ? Collections.<Closeable>emptyList()
+            : new ArrayList<>(builder.sources);
   }
 
   /**
-   * @return
+   * @return a builder starting with the parts of this book.
    */
-  public Collection<Chapter> chapters() {
-    return Collections.unmodifiableCollection(chapters);
+  public Builder toBuilder() {
+    return new Builder(this);
   }
 
   /**
-   * @param path
-   * @return
+   * @return the chapters, which cannot be modified
    */
-  public boolean loadResource(Path path) {
-    return resources.add(path.toAbsolutePath());
+  public List<Chapter> chapters() {
+    return chapters;
   }
 
   /**
-   * @return
+   * Returns the resources added to the book. Those of a chapter parsed lazily are not known to the
+   * book, but to the chapter once loaded.
+   *
+   * @return the resources, which cannot be modified
+   * @see Chapter#resources()
    */
   public Collection<Path> resources() {
-    return Collections.unmodifiableCollection(resources);
+    return resources;
   }
 
   /**
@@ -84,11 +192,26 @@ public class Book {
   }
 
   /**
-   * @param key
-   * @param value
-   * @return
+   * Closes the files the book is read from. The chapters not loaded yet and the resources may not
+   * be read after this.
    */
-  public String setProperty(BookProperty key, String value) {
-    return properties.put(key, value);
+  @Override
+  public void close() throws IOException {
+    IOException exception = null;
+    for (Closeable source : sources) {
+      try {
+        source.close();
+      } catch (IOException e) {
+        if (exception == null) {
+          exception = e;
+        } else {
+          exception.addSuppressed(e);
+        }
+      }
+    }
+
+    if (exception != null) {
+      throw exception;
+    }
   }
 }
@@ -5,23 +5,19 @@
 package org.dacci.tsugumi.doc;
 
 /**
+ * An immutable element of the content of a chapter.
+ *
+ * <p>Elements know nothing of the block or chapter they are in, so the same element can be shared
+ * by any number of trees.
+ *
  * @author dacci
  */
 public abstract class BookElement {
 
-  private Block parent = null;
-
-  /**
-   * @return the parent
-   */
-  public Block getParent() {
-    return parent;
-  }
-
   /**
-   * @param parent the parent to set
+   * @param visitor
+   * @return the result of the method of {@code visitor} for the kind of this element.
+   * @throws X
    */
-  void setParent(Block parent) {
-    this.parent = parent;
-  }
+  public abstract <R, X extends Exception> R accept(ElementVisitor<R, X> visitor) throws X;
 }
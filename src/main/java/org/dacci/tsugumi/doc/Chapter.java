@@ -4,36 +4,69 @@
 
 package org.dacci.tsugumi.doc;
 
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * An immutable chapter.
+ *
+ * <p>The content of a chapter parsed lazily is filled in when it is accessed for the first time,
+ * once for all threads, and never changes afterward.
+ *
  * @author dacci
  */
 public class Chapter {
 
-  private Book book = null;
+  private final Map<BookProperty, String> properties;
 
-  private final EnumMap<BookProperty, String> properties = new EnumMap<>(BookProperty.class);
+  /** The resources the content refers to, written before {@link #root}. */
+  private List<Path> resources;
 
-  private final Block root = new Block();
+  /** The content, or {@code null} until loaded. */
+  private volatile Block root;
 
-  /** */
-  public Chapter() {
-    root.setChapter(this);
+  /**
+   * @param properties
+   * @param root
+   * @param resources the resources {@code root} refers to
+   */
+  public Chapter(Map<BookProperty, String> properties, Block root, Collection<Path> resources) {
+    this(properties);
+
+    if (root == null) {
+      throw new NullPointerException();
+    }
+
+    this.resources = toAbsolutePaths(resources);
+    this.root = root;
   }
 
   /**
-   * @return the book
+   * Makes a chapter whose content is filled in by {@link #load()}.
+   *
+   * @param properties
    */
-  public Book getBook() {
-    return book;
+  protected Chapter(Map<BookProperty, String> properties) {
+    this.properties =
+        properties.isEmpty()
+            ? Collections.<BookProperty, String>emptyMap()
+            : Collections.unmodifiableMap(new EnumMap<>(properties));
   }
 
   /**
-   * @param book the book to set
+   * Makes the content of a chapter parsed lazily, which is called only by the first call to {@link
+   * #getRoot()} or {@link #resources()} that succeeds.
+   *
+   * @return a chapter with the content.
+   * @throws ChapterLoadException if the content cannot be made.
    */
-  void setBook(Book book) {
-    this.book = book;
+  protected Chapter load() {
+    throw new UnsupportedOperationException();
   }
 
   /**
@@ -53,18 +86,59 @@ public class Chapter {
   }
 
   /**
-   * @param key
-   * @param value
-   * @return
+   * @return the root
+   * @throws ChapterLoadException if the chapter is parsed lazily and fails.
    */
-  public String setProperty(BookProperty key, String value) {
-    return properties.put(key, value);
+  public Block getRoot() {
+    Block root = this.root;
+    if (root == null) {
+      root = loadRoot();
+    }
+
+    return root;
   }
 
   /**
-   * @return the root
+   * @return the resources the content refers to, which cannot be modified.
+   * @throws ChapterLoadException if the chapter is parsed lazily and fails.
    */
-  public Block getRoot() {
+  public List<Path> resources() {
+    if (root == null) {
+      loadRoot();
+    }
+
+    return resources;
+  }
+
+  /**
+   * @return the root, loaded by this call if no other thread has done it.
+   */
+  private synchronized Block loadRoot() {
+    if (root == null) {
+      // start over on the next call if failed
+      Chapter loaded = load();
+      resources = loaded.resources();
+      root = loaded.getRoot();
+    }
+
     return root;
   }
+
+  /**
+   * @param paths
+   * @return the absolute paths of {@code paths} in order, which cannot be modified.
+   */
+  private static List<Path> toAbsolutePaths(Collection<Path> paths) {
+    if (paths.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    Path[] array = new Path[paths.size()];
+    int count = 0;
+    for (Path path : paths) {
+      array[count++] = path.toAbsolutePath();
+    }
+
+    return Collections.unmodifiableList(Arrays.asList(array));
+  }
 }
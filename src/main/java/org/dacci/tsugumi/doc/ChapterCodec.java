@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.doc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a chapter in a compact binary form and reads it back, so that parsed chapters can be saved
+ * and reused.
+ *
+ * @author dacci
+ */
+public final class ChapterCodec {
+
+  /** The version of the encoding, to be raised whenever it changes. */
+  public static final int VERSION = 1;
+
+  private static final int NULL = 0;
+
+  private static final int TEXT_SEGMENT = 1;
+
+  private static final int RUBY_SEGMENT = 2;
+
+  private static final int STYLED_SEGMENT = 3;
+
+  private static final int FRAGMENT = 4;
+
+  private static final int IMAGE_MARKER = 5;
+
+  private static final int SIMPLE_MARKER = 6;
+
+  private static final int SIMPLE_STYLE = 1;
+
+  private static final int START_MARGIN_STYLE = 2;
+
+  private static final int END_MARGIN_STYLE = 3;
+
+  private static final int FONT_SIZE_STYLE = 4;
+
+  private static final int WIDTH_STYLE = 5;
+
+  private static final int BLOCK = 1;
+
+  private static final int PARAGRAPH = 2;
+
+  private ChapterCodec() {}
+
+  /**
+   * @param out
+   * @param chapter
+   * @throws IOException if {@code chapter} contains something unknown to this class.
+   */
+  public static void write(DataOutput out, Chapter chapter) throws IOException {
+    BookProperty[] keys = BookProperty.values();
+    int count = 0;
+    for (BookProperty key : keys) {
+      if (chapter.hasProperty(key)) {
+        ++count;
+      }
+    }
+
+    out.writeInt(count);
+    for (BookProperty key : keys) {
+      if (chapter.hasProperty(key)) {
+        out.writeInt(key.ordinal());
+        writeString(out, chapter.getProperty(key));
+      }
+    }
+
+    Block root = chapter.getRoot();
+    writeStyles(out, root.styles());
+    writeElements(out, root);
+  }
+
+  /**
+   * @param in
+   * @return
+   * @throws IOException
+   */
+  public static Chapter read(DataInput in) throws IOException {
+    return read(in, FileSystems.getDefault(), Collections.<Path>emptyList());
+  }
+
+  /**
+   * @param in
+   * @param fileSystem the file system the images are in
+   * @param resources the resources the chapter refers to, which are not written with it
+   * @return
+   * @throws IOException
+   */
+  public static Chapter read(DataInput in, FileSystem fileSystem, Collection<Path> resources)
+      throws IOException {
+    Map<BookProperty, String> properties = new EnumMap<>(BookProperty.class);
+
+    BookProperty[] keys = BookProperty.values();
+    for (int i = in.readInt(); i > 0; --i) {
+      BookProperty key = keys[in.readInt()];
+      properties.put(key, readString(in));
+    }
+
+    StyleSet styles = readStyles(in);
+    Block root = new Block(styles, readElements(in, fileSystem));
+
+    return new Chapter(properties, root, resources);
+  }
+
+  private static void writeElements(final DataOutput out, Block block) throws IOException {
+    writeCount(out, block);
+
+    new DocumentWalker<IOException>() {
+      @Override
+      protected void startBlock(Block block) throws IOException {
+        out.writeByte(BLOCK);
+        writeStyles(out, block.styles());
+        writeCount(out, block);
+      }
+
+      @Override
+      protected void paragraph(Paragraph paragraph) throws IOException {
+        out.writeByte(PARAGRAPH);
+        writeStyles(out, paragraph.styles());
+        writeSegment(out, paragraph.getFragment());
+      }
+    }.walk(block);
+  }
+
+  private static void writeCount(DataOutput out, Block block) throws IOException {
+    out.writeInt(block.elements().size());
+  }
+
+  private static List<BookElement> readElements(DataInput in, FileSystem fileSystem)
+      throws IOException {
+    int count = in.readInt();
+    List<BookElement> elements = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      StyleSet styles;
+      switch (in.readByte()) {
+        case BLOCK:
+          styles = readStyles(in);
+          elements.add(new Block(styles, readElements(in, fileSystem)));
+          break;
+
+        case PARAGRAPH:
+          styles = readStyles(in);
+          elements.add(new Paragraph((Fragment) readSegment(in, fileSystem), styles));
+          break;
+
+        default:
+          throw new IOException("Broken element");
+      }
+    }
+
+    return elements;
+  }
+
+  private static void writeStyles(DataOutput out, StyleSet styles) throws IOException {
+    out.writeInt(styles.size());
+    for (Style style : styles) {
+      if (style == null) {
+        out.writeByte(NULL);
+      } else if (style instanceof SimpleStyle) {
+        out.writeByte(SIMPLE_STYLE);
+        out.writeInt(((SimpleStyle) style).ordinal());
+      } else if (style instanceof StartMarginStyle) {
+        out.writeByte(START_MARGIN_STYLE);
+        out.writeInt(((StartMarginStyle) style).getWidth());
+      } else if (style instanceof EndMarginStyle) {
+        out.writeByte(END_MARGIN_STYLE);
+        out.writeInt(((EndMarginStyle) style).getWidth());
+      } else if (style instanceof FontSizeStyle) {
+        out.writeByte(FONT_SIZE_STYLE);
+        out.writeInt(((FontSizeStyle) style).getLevel());
+      } else if (style instanceof WidthStyle) {
+        out.writeByte(WIDTH_STYLE);
+        out.writeInt(((WidthStyle) style).getWidth());
+      } else {
+        throw new IOException("Unsupported style: " + style.getClass());
+      }
+    }
+  }
+
+  private static StyleSet readStyles(DataInput in) throws IOException {
+    StyleSet styles = StyleSet.EMPTY;
+    for (int i = in.readInt(); i > 0; --i) {
+      styles = styles.with(readStyle(in));
+    }
+
+    return styles;
+  }
+
+  private static Style readStyle(DataInput in) throws IOException {
+    switch (in.readByte()) {
+      case NULL:
+        return null;
+
+      case SIMPLE_STYLE:
+        return SimpleStyle.values()[in.readInt()];
+
+      case START_MARGIN_STYLE:
+        return StartMarginStyle.of(in.readInt());
+
+      case END_MARGIN_STYLE:
+        return EndMarginStyle.of(in.readInt());
+
+      case FONT_SIZE_STYLE:
+        return FontSizeStyle.of(in.readInt());
+
+      case WIDTH_STYLE:
+        return WidthStyle.of(in.readInt());
+
+      default:
+        throw new IOException("Broken style");
+    }
+  }
+
+  private static void writeSegment(DataOutput out, Segment segment) throws IOException {
+    segment.accept(new SegmentWriter(out));
+  }
+
+  /** Writes a segment and its descendants. */
+  private static final class SegmentWriter implements SegmentVisitor<Void, IOException> {
+
+    private final DataOutput out;
+
+    /**
+     * @param out
+     */
+    SegmentWriter(DataOutput out) {
+      this.out = out;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Void visitText(TextSegment segment) throws IOException {
+      out.writeByte(TEXT_SEGMENT);
+      writeString(out, segment.getText());
+      return null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Void visitRuby(RubySegment segment) throws IOException {
+      out.writeByte(RUBY_SEGMENT);
+      segment.getText().accept(this);
+      writeString(out, segment.getRuby());
+      return null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Void visitStyled(StyledSegment segment) throws IOException {
+      out.writeByte(STYLED_SEGMENT);
+      writeStyles(out, segment.styles());
+      segment.getSegment().accept(this);
+      return null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Void visitFragment(Fragment fragment) throws IOException {
+      List<Segment> children = new ArrayList<>();
+      for (Segment child : fragment) {
+        children.add(child);
+      }
+
+      out.writeByte(FRAGMENT);
+      out.writeInt(children.size());
+      int offset = 0;
+      for (Segment child : children) {
+        out.writeInt(offset);
+        child.accept(this);
+        offset += child.length();
+      }
+      return null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Void visitImage(ImageMarker marker) throws IOException {
+      out.writeByte(IMAGE_MARKER);
+      writeString(out, marker.getFile().toString());
+      writeString(out, marker.getCaption());
+      out.writeInt(marker.getWidth());
+      out.writeInt(marker.getHeight());
+      return null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Void visitMarker(SimpleMarker marker) throws IOException {
+      out.writeByte(SIMPLE_MARKER);
+      out.writeInt(marker.ordinal());
+      return null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Void visitOther(Segment segment) throws IOException {
+      throw new IOException("Unsupported segment: " + segment.getClass());
+    }
+  }
+
+  private static Segment readSegment(DataInput in, FileSystem fileSystem) throws IOException {
+    switch (in.readByte()) {
+      case TEXT_SEGMENT:
+        return new TextSegment(readString(in));
+
+      case RUBY_SEGMENT:
+        Segment text = readSegment(in, fileSystem);
+        return new RubySegment(text, readString(in));
+
+      case STYLED_SEGMENT:
+        StyleSet styles = readStyles(in);
+        return new StyledSegment(readSegment(in, fileSystem), styles);
+
+      case FRAGMENT:
+        List<Segment> children = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; --i) {
+          in.readInt(); // the offset, which follows from the lengths
+          children.add(readSegment(in, fileSystem));
+        }
+        return new Fragment(children);
+
+      case IMAGE_MARKER:
+        Path file = fileSystem.getPath(readString(in));
+        String caption = readString(in);
+        int width = in.readInt();
+        return new ImageMarker(file, caption, width, in.readInt());
+
+      case SIMPLE_MARKER:
+        return SimpleMarker.values()[in.readInt()];
+
+      default:
+        throw new IOException("Broken segment");
+    }
+  }
+
+  private static void writeString(DataOutput out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.doc;
+
+/**
+ * Thrown by a chapter parsed lazily when its content cannot be made, with the reason as its cause.
+ *
+ * @author dacci
+ */
+@SuppressWarnings("serial")
+public class ChapterLoadException extends RuntimeException {
+
+  /**
+   * @param cause
+   */
+  public ChapterLoadException(Throwable cause) {
+    super(cause);
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.doc;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Walks a tree of elements or segments in document order, calling the method for each node.
+ *
+ * <p>The nodes are dispatched by {@link BookElement#accept(ElementVisitor)} and {@link
+ * Segment#accept(SegmentVisitor)}, and the path from the root is kept on a stack of its own instead
+ * of the call stack, so a tree of any depth can be walked. Fragments are transparent: only their
+ * children are reported. The methods do nothing unless overridden.
+ *
+ * @param <X> the type of the exception thrown by the methods
+ * @author dacci
+ */
+public abstract class DocumentWalker<X extends Exception> {
+
+  /** Reports an element, returning the block to descend into if any. */
+  private final ElementVisitor<Block, X> elementEntry =
+      new ElementVisitor<Block, X>() {
+        @Override
+        public Block visitBlock(Block block) throws X {
+          startBlock(block);
+          return block;
+        }
+
+        @Override
+        public Block visitParagraph(Paragraph paragraph) throws X {
+          paragraph(paragraph);
+          return null;
+        }
+      };
+
+  /** Reports a segment, returning its children to descend into if any. */
+  private final SegmentVisitor<Iterator<Segment>, X> segmentEntry =
+      new SegmentVisitor<Iterator<Segment>, X>() {
+        @Override
+        public Iterator<Segment> visitText(TextSegment segment) throws X {
+          text(segment);
+          return null;
+        }
+
+        @Override
+        public Iterator<Segment> visitRuby(RubySegment segment) throws X {
+          startRuby(segment);
+          return Collections.singletonList(segment.getText()).iterator();
+        }
+
+        @Override
+        public Iterator<Segment> visitStyled(StyledSegment segment) throws X {
+          startStyled(segment);
+          return Collections.singletonList(segment.getSegment()).iterator();
+        }
+
+        @Override
+        public Iterator<Segment> visitFragment(Fragment fragment) {
+          return fragment.iterator();
+        }
+
+        @Override
+        public Iterator<Segment> visitImage(ImageMarker marker) throws X {
+          image(marker);
+          return null;
+        }
+
+        @Override
+        public Iterator<Segment> visitMarker(SimpleMarker marker) throws X {
+          marker(marker);
+          return null;
+        }
+
+        @Override
+        public Iterator<Segment> visitOther(Segment segment) throws X {
+          other(segment);
+          return null;
+        }
+      };
+
+  /** Reports the end of a segment whose children have been walked. */
+  private final SegmentVisitor<Void, X> segmentExit =
+      new SegmentVisitor<Void, X>() {
+        @Override
+        public Void visitText(TextSegment segment) {
+          return null;
+        }
+
+        @Override
+        public Void visitRuby(RubySegment segment) throws X {
+          endRuby(segment);
+          return null;
+        }
+
+        @Override
+        public Void visitStyled(StyledSegment segment) throws X {
+          endStyled(segment);
+          return null;
+        }
+
+        @Override
+        public Void visitFragment(Fragment fragment) {
+          return null;
+        }
+
+        @Override
+        public Void visitImage(ImageMarker marker) {
+          return null;
+        }
+
+        @Override
+        public Void visitMarker(SimpleMarker marker) {
+          return null;
+        }
+
+        @Override
+        public Void visitOther(Segment segment) {
+          return null;
+        }
+      };
+
+  /**
+   * Walks the elements of {@code block}, not reporting {@code block} itself.
+   *
+   * @param block
+   * @throws X
+   */
+  public void walk(Block block) throws X {
+    Deque<Block> blocks = new ArrayDeque<>();
+    Deque<Iterator<BookElement>> path = new ArrayDeque<>();
+    path.push(block.elements().iterator());
+
+    while (true) {
+      Iterator<BookElement> iterator = path.peek();
+      if (iterator.hasNext()) {
+        Block child = iterator.next().accept(elementEntry);
+        if (child != null) {
+          blocks.push(child);
+          path.push(child.elements().iterator());
+        }
+      } else if (blocks.isEmpty()) {
+        break;
+      } else {
+        path.pop();
+        endBlock(blocks.pop());
+      }
+    }
+  }
+
+  /**
+   * Walks {@code segment} and its descendants.
+   *
+   * @param segment
+   * @throws X
+   */
+  public void walk(Segment segment) throws X {
+    Iterator<Segment> children = segment.accept(segmentEntry);
+    if (children == null) {
+      return;
+    }
+
+    Deque<Segment> segments = new ArrayDeque<>();
+    Deque<Iterator<Segment>> path = new ArrayDeque<>();
+    segments.push(segment);
+    path.push(children);
+
+    while (!path.isEmpty()) {
+      Iterator<Segment> iterator = path.peek();
+      if (iterator.hasNext()) {
+        Segment child = iterator.next();
+        children = child.accept(segmentEntry);
+        if (children != null) {
+          segments.push(child);
+          path.push(children);
+        }
+      } else {
+        path.pop();
+        segments.pop().accept(segmentExit);
+      }
+    }
+  }
+
+  /**
+   * @param block
+   * @throws X
+   */
+  protected void startBlock(Block block) throws X {}
+
+  /**
+   * @param block
+   * @throws X
+   */
+  protected void endBlock(Block block) throws X {}
+
+  /**
+   * Reports a paragraph, whose segments are not walked unless this method does so.
+   *
+   * @param paragraph
+   * @throws X
+   */
+  protected void paragraph(Paragraph paragraph) throws X {}
+
+  /**
+   * @param segment
+   * @throws X
+   */
+  protected void text(TextSegment segment) throws X {}
+
+  /**
+   * @param segment
+   * @throws X
+   */
+  protected void startRuby(RubySegment segment) throws X {}
+
+  /**
+   * @param segment
+   * @throws X
+   */
+  protected void endRuby(RubySegment segment) throws X {}
+
+  /**
+   * @param segment
+   * @throws X
+   */
+  protected void startStyled(StyledSegment segment) throws X {}
+
+  /**
+   * @param segment
+   * @throws X
+   */
+  protected void endStyled(StyledSegment segment) throws X {}
+
+  /**
+   * @param marker
+   * @throws X
+   */
+  protected void image(ImageMarker marker) throws X {}
+
+  /**
+   * @param marker
+   * @throws X
+   */
+  protected void marker(SimpleMarker marker) throws X {}
+
+  /**
+   * @param segment a segment of another kind
+   * @throws X
+   */
+  protected void other(Segment segment) throws X {}
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.doc;
+
+/**
+ * An operation on elements, to which {@link BookElement#accept(ElementVisitor)} dispatches each
+ * element by its kind.
+ *
+ * @param <R> the type of the result
+ * @param <X> the type of the exception thrown
+ * @author dacci
+ */
+public interface ElementVisitor<R, X extends Exception> {
+
+  /**
+   * @param block
+   * @return the result
+   * @throws X
+   */
+  R visitBlock(Block block) throws X;
+
+  /**
+   * @param paragraph
+   * @return the result
+   * @throws X
+   */
+  R visitParagraph(Paragraph paragraph) throws X;
+}
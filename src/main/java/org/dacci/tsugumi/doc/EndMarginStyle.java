@@ -4,48 +4,66 @@
 
 package org.dacci.tsugumi.doc;
 
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 
 /**
+ * An immutable style, instances of which are shared through {@link #of(int)}.
+ *
  * @author dacci
  */
-public class EndMarginStyle implements Style, Cloneable {
+public class EndMarginStyle implements Style {
 
-  private int width;
+  private static final int MIN_CACHED = 0;
+
+  private static final int MAX_CACHED = 63;
+
+  private static final EndMarginStyle[] CACHE = new EndMarginStyle[MAX_CACHED - MIN_CACHED + 1];
+
+  static {
+    for (int i = 0; i < CACHE.length; ++i) {
+      CACHE[i] = new EndMarginStyle(MIN_CACHED + i);
+    }
+  }
+
+  private final int width;
 
   /**
    * @param width
    */
-  public EndMarginStyle(int width) {
+  private EndMarginStyle(int width) {
     this.width = width;
   }
 
   /**
-   * @return the width
+   * @param width
+   * @return the style of {@code width}, the same instance for the common values.
    */
-  public int getWidth() {
-    return width;
+  public static EndMarginStyle of(int width) {
+    int index = width - MIN_CACHED;
+    if (index >= 0 && index < CACHE.length) {
+      return CACHE[index];
+    }
+
+    return new EndMarginStyle(width);
   }
 
   /**
-   * @param width the width to set
+   * @return the width
    */
-  public void setWidth(int width) {
-    this.width = width;
+  public int getWidth() {
+    return width;
   }
 
   /** {@inheritDoc} */
   @Override
   public int hashCode() {
-    return HashCodeBuilder.reflectionHashCode(this);
+    return 31 * 2 + width;
   }
 
   /** {@inheritDoc} */
   @Override
   public boolean equals(Object obj) {
-    return EqualsBuilder.reflectionEquals(this, obj);
+    return obj instanceof EndMarginStyle && ((EndMarginStyle) obj).width == width;
   }
 
   /** {@inheritDoc} */
@@ -57,10 +75,6 @@ public class EndMarginStyle implements Style, Cloneable {
   /** {@InheritDoc} */
   @Override
   public Style copy() {
-    try {
-      return (EndMarginStyle) super.clone();
-    } catch (CloneNotSupportedException e) {
-      throw new Error(e);
-    }
+    return this;
   }
 }
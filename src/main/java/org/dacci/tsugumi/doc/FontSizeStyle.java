@@ -4,48 +4,66 @@
 
 package org.dacci.tsugumi.doc;
 
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 
 /**
+ * An immutable style, instances of which are shared through {@link #of(int)}.
+ *
  * @author dacci
  */
-public class FontSizeStyle implements Style, Cloneable {
+public class FontSizeStyle implements Style {
 
-  private int level;
+  private static final int MIN_CACHED = -8;
+
+  private static final int MAX_CACHED = 8;
+
+  private static final FontSizeStyle[] CACHE = new FontSizeStyle[MAX_CACHED - MIN_CACHED + 1];
+
+  static {
+    for (int i = 0; i < CACHE.length; ++i) {
+      CACHE[i] = new FontSizeStyle(MIN_CACHED + i);
+    }
+  }
+
+  private final int level;
 
   /**
    * @param level
    */
-  public FontSizeStyle(int level) {
+  private FontSizeStyle(int level) {
     this.level = level;
   }
 
   /**
-   * @return the level
+   * @param level
+   * @return the style of {@code level}, the same instance for the common values.
    */
-  public int getLevel() {
-    return level;
+  public static FontSizeStyle of(int level) {
+    int index = level - MIN_CACHED;
+    if (index >= 0 && index < CACHE.length) {
+      return CACHE[index];
+    }
+
+    return new FontSizeStyle(level);
   }
 
   /**
-   * @param level the level to set
+   * @return the level
    */
-  public void setLevel(int level) {
-    this.level = level;
+  public int getLevel() {
+    return level;
   }
 
   /** {@inheritDoc} */
   @Override
   public int hashCode() {
-    return HashCodeBuilder.reflectionHashCode(this);
+    return 31 * 3 + level;
   }
 
   /** {@inheritDoc} */
   @Override
   public boolean equals(Object obj) {
-    return EqualsBuilder.reflectionEquals(this, obj);
+    return obj instanceof FontSizeStyle && ((FontSizeStyle) obj).level == level;
   }
 
   /** {@inheritDoc} */
@@ -57,10 +75,6 @@ public class FontSizeStyle implements Style, Cloneable {
   /** {@InheritDoc} */
   @Override
   public Style copy() {
-    try {
-      return (FontSizeStyle) super.clone();
-    } catch (CloneNotSupportedException e) {
-      throw new Error(e);
-    }
+    return this;
   }
 }
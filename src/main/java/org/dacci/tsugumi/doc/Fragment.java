@@ -4,74 +4,112 @@
 
 package org.dacci.tsugumi.doc;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.NoSuchElementException;
 
 /**
+ * An immutable sequence of segments.
+ *
+ * <p>The segments are kept in a balanced tree whose nodes know the length of their subtrees, so the
+ * offset of a segment is found from the root without being stored, and replacing a range only
+ * rebuilds the path to it. The nodes are never modified, so a sub-sequence or a fragment with a
+ * range replaced shares them with the fragment it was made from.
+ *
  * @author dacci
  */
 public class Fragment implements Segment, Iterable<Segment> {
 
   private static final Fragment EMPTY_FRAGMENT = new Fragment();
 
-  private final NavigableMap<Integer, Segment> children = new TreeMap<>();
+  /** A node of an AVL tree of segments. */
+  private static final class Node {
+
+    private final Node left;
+
+    private final Segment segment;
+
+    private final Node right;
+
+    /** The length of the segments in this subtree. */
+    private final int length;
+
+    private final int height;
+
+    /**
+     * @param left
+     * @param segment
+     * @param right
+     */
+    Node(Node left, Segment segment, Node right) {
+      this.left = left;
+      this.segment = segment;
+      this.right = right;
+      length = length(left) + segment.length() + length(right);
+      height = Math.max(height(left), height(right)) + 1;
+    }
+  }
+
+  private final Node root;
 
   /**
    * @param text
    */
   Fragment(String text) {
-    children.put(0, new TextSegment(text));
+    root = new Node(null, new TextSegment(text), null);
+  }
+
+  /**
+   * @param segments
+   */
+  public Fragment(List<? extends Segment> segments) {
+    Segment[] nonEmpty = new Segment[segments.size()];
+    int count = 0;
+    for (Segment segment : segments) {
+      if (segment.length() > 0) {
+        nonEmpty[count++] = segment;
+      }
+    }
+
+    root = build(nonEmpty, 0, count);
   }
 
   /** */
-  private Fragment() {}
+  private Fragment() {
+    root = null;
+  }
+
+  /**
+   * @param root
+   */
+  private Fragment(Node root) {
+    this.root = root;
+  }
 
   /**
    * @param start
    * @param end
    * @param replacement
+   * @return a fragment with the range replaced by {@code replacement}, sharing the rest with this
+   *     fragment.
    */
-  public void replace(Integer start, Integer end, Segment replacement) {
-    splitAt(start);
-    splitAt(end);
-
-    List<Segment> segments = new ArrayList<>();
-    if (replacement != null) {
-      segments.add(replacement);
+  public Fragment replace(int start, int end, Segment replacement) {
+    if (start < 0 || end < start || end > length()) {
+      throw new StringIndexOutOfBoundsException();
     }
-    segments.addAll(children.tailMap(end).values());
-
-    children.tailMap(start).clear();
 
-    int index = start.intValue();
-    for (Segment segment : segments) {
-      children.put(index, segment);
-      index += segment.length();
-    }
-  }
+    Node[] parts = new Node[2];
+    split(root, end, parts);
+    Node back = parts[1];
+    split(parts[0], start, parts);
 
-  private void splitAt(Integer index) {
-    Entry<Integer, Segment> entry = children.floorEntry(index);
-    if (entry == null) {
-      throw new StringIndexOutOfBoundsException(index);
+    if (replacement == null || replacement.length() == 0) {
+      return new Fragment(concat(parts[0], back));
     }
 
-    if (entry.getKey().equals(index)) {
-      return;
-    }
-
-    int offset = entry.getKey();
-    Segment segment = entry.getValue();
-    Segment front = segment.subSequence(0, index - offset);
-    Segment back = segment.subSequence(index - offset, segment.length());
-
-    children.put(entry.getKey(), front);
-    children.put(index, back);
+    return new Fragment(join(parts[0], replacement, back));
   }
 
   /** {@inheritDoc} */
@@ -89,34 +127,38 @@ public class Fragment implements Segment, Iterable<Segment> {
   /** {@inheritDoc} */
   @Override
   public StringBuilder toString(StringBuilder builder) {
-    for (Segment segment : children.values()) {
-      segment.toString(builder);
-    }
-
+    toString(root, builder);
     return builder;
   }
 
   /** {@inheritDoc} */
   @Override
   public int length() {
-    int length = 0;
-
-    for (Segment segment : children.values()) {
-      length += segment.length();
-    }
-
-    return length;
+    return length(root);
   }
 
   /** {@inheritDoc} */
   @Override
   public char charAt(int index) {
-    Entry<Integer, Segment> entry = children.floorEntry(index);
-    if (entry == null) {
-      throw new StringIndexOutOfBoundsException(index);
+    Node node = root;
+    int offset = index;
+    while (node != null) {
+      int leftLength = length(node.left);
+      if (offset < leftLength) {
+        node = node.left;
+        continue;
+      }
+
+      offset -= leftLength;
+      if (offset < node.segment.length()) {
+        return node.segment.charAt(offset);
+      }
+
+      offset -= node.segment.length();
+      node = node.right;
     }
 
-    return entry.getValue().charAt(index - entry.getKey().intValue());
+    throw new StringIndexOutOfBoundsException(index);
   }
 
   /** {@inheritDoc} */
@@ -130,47 +172,261 @@ public class Fragment implements Segment, Iterable<Segment> {
       return EMPTY_FRAGMENT;
     }
 
-    Integer startKey = children.floorKey(start);
-    Integer endKey = children.ceilingKey(end);
-    SortedMap<Integer, Segment> subMap;
-    if (endKey != null) {
-      subMap = children.subMap(startKey, endKey);
-    } else {
-      subMap = children.tailMap(startKey);
+    if (end > length()) {
+      throw new StringIndexOutOfBoundsException(end);
+    }
+
+    // a range within a single segment is taken from it
+    Node node = root;
+    int offset = start;
+    while (true) {
+      int leftLength = length(node.left);
+      if (offset < leftLength) {
+        node = node.left;
+        continue;
+      }
+
+      offset -= leftLength;
+      int length = node.segment.length();
+      if (offset < length) {
+        if (offset + end - start <= length) {
+          return node.segment.subSequence(offset, offset + end - start);
+        }
+        break;
+      }
+
+      offset -= length;
+      node = node.right;
+    }
+
+    Node[] parts = new Node[2];
+    split(root, end, parts);
+    split(parts[0], start, parts);
+
+    return new Fragment(parts[1]);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Iterator<Segment> iterator() {
+    return new Iterator<Segment>() {
+      private final Deque<Node> path = new ArrayDeque<>();
+
+      {
+        pushLeft(root);
+      }
+
+      private void pushLeft(Node node) {
+        for (; node != null; node = node.left) {
+          path.push(node);
+        }
+      }
+
+      @Override
+      public boolean hasNext() {
+        return !path.isEmpty();
+      }
+
+      @Override
+      public Segment next() {
+        if (path.isEmpty()) {
+          throw new NoSuchElementException();
+        }
+
+        Node node = path.pop();
+        pushLeft(node.right);
+
+        return node.segment;
+      }
+    };
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public <R, X extends Exception> R accept(SegmentVisitor<R, X> visitor) throws X {
+    return visitor.visitFragment(this);
+  }
+
+  /**
+   * Verifies the lengths and the balance of the tree, for the tests.
+   *
+   * @return the height of the tree.
+   * @throws IllegalStateException if the tree is broken.
+   */
+  int verifyTree() {
+    return verify(root);
+  }
+
+  private static int verify(Node node) {
+    if (node == null) {
+      return 0;
     }
 
-    Iterator<Entry<Integer, Segment>> iterator = subMap.entrySet().iterator();
-    Entry<Integer, Segment> entry = iterator.next();
+    int leftHeight = verify(node.left);
+    int rightHeight = verify(node.right);
+    if (Math.abs(leftHeight - rightHeight) > 1) {
+      throw new IllegalStateException("unbalanced: " + leftHeight + ", " + rightHeight);
+    } else if (node.height != Math.max(leftHeight, rightHeight) + 1) {
+      throw new IllegalStateException("wrong height: " + node.height);
+    } else if (node.length != length(node.left) + node.segment.length() + length(node.right)) {
+      throw new IllegalStateException("wrong length: " + node.length);
+    }
 
-    if (subMap.size() == 1) {
-      return entry.getValue().subSequence(start - startKey, end - startKey);
+    return node.height;
+  }
+
+  private static int length(Node node) {
+    return node == null ? 0 : node.length;
+  }
+
+  private static int height(Node node) {
+    return node == null ? 0 : node.height;
+  }
+
+  /**
+   * @param segments
+   * @param start
+   * @param end
+   * @return a tree of the segments in the range, as balanced as possible.
+   */
+  private static Node build(Segment[] segments, int start, int end) {
+    if (start == end) {
+      return null;
     }
 
-    Fragment fragment = new Fragment();
+    int middle = (start + end) >>> 1;
+    return new Node(
+        build(segments, start, middle), segments[middle], build(segments, middle + 1, end));
+  }
 
-    Segment segment = entry.getValue();
-    segment = segment.subSequence(start - entry.getKey(), segment.length());
-    fragment.children.put(0, segment);
-    int index = segment.length();
+  private static void toString(Node node, StringBuilder builder) {
+    for (; node != null; node = node.right) {
+      toString(node.left, builder);
+      node.segment.toString(builder);
+    }
+  }
 
-    for (int i = 1, l = subMap.size() - 1; i < l; ++i) {
-      entry = iterator.next();
-      segment = entry.getValue();
-      fragment.children.put(index, segment);
-      index += segment.length();
+  /**
+   * @param left
+   * @param segment
+   * @param right
+   * @return a tree of {@code left}, {@code segment} and {@code right} in this order, whose height
+   *     is at most one more than the higher of the two.
+   */
+  private static Node join(Node left, Segment segment, Node right) {
+    int leftHeight = height(left);
+    int rightHeight = height(right);
+
+    if (leftHeight > rightHeight + 1) {
+      return balance(left.left, left.segment, join(left.right, segment, right));
+    } else if (rightHeight > leftHeight + 1) {
+      return balance(join(left, segment, right.left), right.segment, right.right);
     }
 
-    entry = iterator.next();
-    segment = entry.getValue();
-    segment = segment.subSequence(0, end - entry.getKey());
-    fragment.children.put(index, segment);
+    return new Node(left, segment, right);
+  }
 
-    return fragment;
+  /**
+   * @param left
+   * @param right
+   * @return a tree of {@code left} and {@code right} in this order.
+   */
+  private static Node concat(Node left, Node right) {
+    if (left == null) {
+      return right;
+    } else if (right == null) {
+      return left;
+    }
+
+    // the first segment of the right tree joins the two
+    Node first = right;
+    while (first.left != null) {
+      first = first.left;
+    }
+
+    return join(left, first.segment, removeFirst(right));
   }
 
-  /** {@inheritDoc} */
-  @Override
-  public Iterator<Segment> iterator() {
-    return children.values().iterator();
+  /**
+   * @param node
+   * @return {@code node} without its first segment.
+   */
+  private static Node removeFirst(Node node) {
+    if (node.left == null) {
+      return node.right;
+    }
+
+    return balance(removeFirst(node.left), node.segment, node.right);
+  }
+
+  /**
+   * @param left
+   * @param segment
+   * @param right
+   * @return a node of the arguments, rotated if the heights of the subtrees differ by two.
+   */
+  private static Node balance(Node left, Segment segment, Node right) {
+    int leftHeight = height(left);
+    int rightHeight = height(right);
+
+    if (leftHeight > rightHeight + 1) {
+      if (height(left.left) >= height(left.right)) {
+        return new Node(left.left, left.segment, new Node(left.right, segment, right));
+      }
+
+      Node pivot = left.right;
+      return new Node(
+          new Node(left.left, left.segment, pivot.left),
+          pivot.segment,
+          new Node(pivot.right, segment, right));
+    } else if (rightHeight > leftHeight + 1) {
+      if (height(right.right) >= height(right.left)) {
+        return new Node(new Node(left, segment, right.left), right.segment, right.right);
+      }
+
+      Node pivot = right.left;
+      return new Node(
+          new Node(left, segment, pivot.left),
+          pivot.segment,
+          new Node(pivot.right, right.segment, right.right));
+    }
+
+    return new Node(left, segment, right);
+  }
+
+  /**
+   * Splits {@code node} at {@code index}, splitting the segment containing it if any.
+   *
+   * @param node
+   * @param index
+   * @param parts the array to store the trees before and after {@code index} to
+   */
+  private static void split(Node node, int index, Node[] parts) {
+    if (node == null) {
+      parts[0] = null;
+      parts[1] = null;
+      return;
+    }
+
+    int leftLength = length(node.left);
+    int segmentLength = node.segment.length();
+
+    if (index < leftLength) {
+      split(node.left, index, parts);
+      parts[1] = join(parts[1], node.segment, node.right);
+    } else if (index == leftLength) {
+      parts[0] = node.left;
+      parts[1] = join(null, node.segment, node.right);
+    } else if (index < leftLength + segmentLength) {
+      int offset = index - leftLength;
+      parts[0] = join(node.left, node.segment.subSequence(0, offset), null);
+      parts[1] = join(null, node.segment.subSequence(offset, segmentLength), node.right);
+    } else if (index == leftLength + segmentLength) {
+      parts[0] = join(node.left, node.segment, null);
+      parts[1] = node.right;
+    } else {
+      split(node.right, index - leftLength - segmentLength, parts);
+      parts[0] = join(node.left, node.segment, parts[0]);
+    }
   }
 }
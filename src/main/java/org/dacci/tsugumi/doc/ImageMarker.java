@@ -7,24 +7,43 @@ package org.dacci.tsugumi.doc;
 import java.nio.file.Path;
 
 /**
+ * An immutable marker of an image.
+ *
  * @author dacci
  */
 public class ImageMarker implements Marker {
 
-  private String caption;
+  private final String caption;
 
-  private Path file;
+  private final Path file;
+
+  private final int width;
+
+  private final int height;
 
   /**
    * @param file
    */
   public ImageMarker(Path file) {
-    this.file = file;
+    this(file, null, -1, -1);
   }
 
-  private int width = -1;
+  /**
+   * @param file
+   * @param caption
+   * @param width the width, or a negative value if not known
+   * @param height the height, or a negative value if not known
+   */
+  public ImageMarker(Path file, String caption, int width, int height) {
+    if (file == null) {
+      throw new NullPointerException();
+    }
 
-  private int height = -1;
+    this.file = file;
+    this.caption = caption;
+    this.width = width < 0 ? -1 : width;
+    this.height = height < 0 ? -1 : height;
+  }
 
   /**
    * @return the caption
@@ -33,13 +52,6 @@ public class ImageMarker implements Marker {
     return caption;
   }
 
-  /**
-   * @param caption the caption to set
-   */
-  public void setCaption(String caption) {
-    this.caption = caption;
-  }
-
   /**
    * @return the file
    */
@@ -47,17 +59,6 @@ public class ImageMarker implements Marker {
     return file;
   }
 
-  /**
-   * @param file the file to set
-   */
-  public void setFile(Path file) {
-    if (file == null) {
-      throw new NullPointerException();
-    }
-
-    this.file = file;
-  }
-
   /**
    * @return the width
    */
@@ -65,17 +66,6 @@ public class ImageMarker implements Marker {
     return width;
   }
 
-  /**
-   * @param width the width to set
-   */
-  public void setWidth(int width) {
-    if (width < 0) {
-      this.width = -1;
-    } else {
-      this.width = width;
-    }
-  }
-
   /**
    * @return the height
    */
@@ -83,14 +73,9 @@ public class ImageMarker implements Marker {
     return height;
   }
 
-  /**
-   * @param height the height to set
-   */
-  public void setHeight(int height) {
-    if (height < 0) {
-      this.height = -1;
-    } else {
-      this.height = height;
-    }
+  /** {@inheritDoc} */
+  @Override
+  public <R, X extends Exception> R accept(SegmentVisitor<R, X> visitor) throws X {
+    return visitor.visitImage(this);
   }
 }
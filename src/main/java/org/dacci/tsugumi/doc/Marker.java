@@ -42,4 +42,10 @@ public interface Marker extends Segment {
   default Segment subSequence(int start, int end) {
     throw new UnsupportedOperationException();
   }
+
+  /** {@inheritDoc} */
+  @Override
+  default <R, X extends Exception> R accept(SegmentVisitor<R, X> visitor) throws X {
+    return visitor.visitOther(this);
+  }
 }
@@ -4,51 +4,58 @@
 
 package org.dacci.tsugumi.doc;
 
-import java.util.Collections;
-import java.util.LinkedHashSet;
-import java.util.Set;
-
 /**
+ * An immutable paragraph.
+ *
  * @author dacci
  */
 public class Paragraph extends BookElement {
 
   private final Fragment fragment;
 
-  private final Set<Style> styles = new LinkedHashSet<>();
+  private final StyleSet styles;
 
   public Paragraph(String text) {
-    fragment = new Fragment(text);
+    this(new Fragment(text));
   }
 
   /**
-   * @return the fragment
+   * @param fragment
    */
-  public Fragment getFragment() {
-    return fragment;
+  public Paragraph(Fragment fragment) {
+    this(fragment, StyleSet.EMPTY);
   }
 
   /**
-   * @param style
-   * @return
+   * @param fragment
+   * @param styles the styles, which must not contain {@code null}
    */
-  public boolean addStyle(Style style) {
-    if (style == null) {
+  public Paragraph(Fragment fragment, StyleSet styles) {
+    if (fragment == null || styles.contains(null)) {
       throw new NullPointerException();
     }
 
-    return styles.add(style);
+    this.fragment = fragment;
+    this.styles = styles;
   }
 
-  /** */
-  public void clearStyles() {
-    styles.clear();
+  /**
+   * @return the fragment
+   */
+  public Fragment getFragment() {
+    return fragment;
   }
 
   /**
    * @return
    */
-  public Iterable<Style> styles() {
-    return Collections.unmodifiableCollection(styles);
+  public StyleSet styles() {
+    return styles;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public <R, X extends Exception> R accept(ElementVisitor<R, X> visitor) throws X {
+    return visitor.visitParagraph(this);
   }
 }
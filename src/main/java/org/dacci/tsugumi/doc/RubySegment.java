@@ -5,13 +5,15 @@
 package org.dacci.tsugumi.doc;
 
 /**
+ * An immutable segment with ruby.
+ *
  * @author dacci
  */
 public class RubySegment implements Segment {
 
-  private Segment text;
+  private final Segment text;
 
-  private String ruby;
+  private final String ruby;
 
   /**
    * @param text
@@ -29,13 +31,6 @@ public class RubySegment implements Segment {
     return text;
   }
 
-  /**
-   * @param text the text to set
-   */
-  public void setText(Segment text) {
-    this.text = text;
-  }
-
   /**
    * @return the ruby
    */
@@ -43,13 +38,6 @@ public class RubySegment implements Segment {
     return ruby;
   }
 
-  /**
-   * @param ruby the ruby to set
-   */
-  public void setRuby(String ruby) {
-    this.ruby = ruby;
-  }
-
   /** {@inheritDoc} */
   @Override
   public boolean hasChildren() {
@@ -83,4 +71,10 @@ public class RubySegment implements Segment {
 
     return this;
   }
+
+  /** {@inheritDoc} */
+  @Override
+  public <R, X extends Exception> R accept(SegmentVisitor<R, X> visitor) throws X {
+    return visitor.visitRuby(this);
+  }
 }
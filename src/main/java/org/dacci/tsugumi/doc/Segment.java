@@ -16,4 +16,11 @@ public interface Segment extends CharSequence {
   /** {@inheritDoc} */
   @Override
   Segment subSequence(int start, int end);
+
+  /**
+   * @param visitor
+   * @return the result of the method of {@code visitor} for the kind of this segment.
+   * @throws X
+   */
+  <R, X extends Exception> R accept(SegmentVisitor<R, X> visitor) throws X;
 }
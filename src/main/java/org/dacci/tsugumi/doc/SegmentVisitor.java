@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.doc;
+
+/**
+ * An operation on segments, to which {@link Segment#accept(SegmentVisitor)} dispatches each segment
+ * by its kind.
+ *
+ * @param <R> the type of the result
+ * @param <X> the type of the exception thrown
+ * @author dacci
+ */
+public interface SegmentVisitor<R, X extends Exception> {
+
+  /**
+   * @param segment
+   * @return the result
+   * @throws X
+   */
+  R visitText(TextSegment segment) throws X;
+
+  /**
+   * @param segment
+   * @return the result
+   * @throws X
+   */
+  R visitRuby(RubySegment segment) throws X;
+
+  /**
+   * @param segment
+   * @return the result
+   * @throws X
+   */
+  R visitStyled(StyledSegment segment) throws X;
+
+  /**
+   * @param fragment
+   * @return the result
+   * @throws X
+   */
+  R visitFragment(Fragment fragment) throws X;
+
+  /**
+   * @param marker
+   * @return the result
+   * @throws X
+   */
+  R visitImage(ImageMarker marker) throws X;
+
+  /**
+   * @param marker
+   * @return the result
+   * @throws X
+   */
+  R visitMarker(SimpleMarker marker) throws X;
+
+  /**
+   * Visits a segment of another kind, such as the ones a format uses while parsing.
+   *
+   * @param segment
+   * @return the result
+   * @throws X
+   */
+  R visitOther(Segment segment) throws X;
+}
@@ -8,5 +8,11 @@ package org.dacci.tsugumi.doc;
  * @author dacci
  */
 public enum SimpleMarker implements Marker {
-  LineBreak
+  LineBreak;
+
+  /** {@inheritDoc} */
+  @Override
+  public <R, X extends Exception> R accept(SegmentVisitor<R, X> visitor) throws X {
+    return visitor.visitMarker(this);
+  }
 }
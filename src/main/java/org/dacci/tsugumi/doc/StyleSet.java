@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.doc;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable set of styles.
+ *
+ * <p>The simple styles are kept as bits and the others in a small sorted array, and the sets are
+ * interned, so the equal combinations of styles used throughout a book are usually the same
+ * instance and can be told apart by identity. The interned sets are held weakly, so those no longer
+ * used by any book are let go. {@code null} may be a member, standing for a style that is not
+ * known.
+ *
+ * <p>The styles are iterated in a fixed order: {@code null} first, then the simple styles in the
+ * order they are declared, then the others by their kind and parameter.
+ *
+ * @author dacci
+ */
+public final class StyleSet extends AbstractSet<Style> {
+
+  private static final SimpleStyle[] SIMPLE_STYLES = SimpleStyle.values();
+
+  /** The bit standing for {@code null}, above those of the simple styles. */
+  private static final long NULL_BIT = 1L << 63;
+
+  private static final Style[] NO_STYLES = {};
+
+  private static final ConcurrentMap<Key, Entry> INTERNED = new ConcurrentHashMap<>();
+
+  /** The entries of {@link #INTERNED} whose sets have been garbage collected. */
+  private static final ReferenceQueue<StyleSet> COLLECTED = new ReferenceQueue<>();
+
+  private static final Comparator<Style> ORDER =
+      new Comparator<Style>() {
+        @Override
+        public int compare(Style o1, Style o2) {
+          int result = Integer.compare(rank(o1), rank(o2));
+          if (result == 0) {
+            result = Integer.compare(parameter(o1), parameter(o2));
+          }
+          if (result == 0) {
+            result = o1.getClass().getName().compareTo(o2.getClass().getName());
+          }
+
+          return result;
+        }
+      };
+
+  /** The empty set. */
+  public static final StyleSet EMPTY = intern(new StyleSet(0, NO_STYLES));
+
+  /** The simple styles by their ordinals, and {@link #NULL_BIT}. */
+  private final long bits;
+
+  /** The other styles, in {@link #ORDER}. */
+  private final Style[] others;
+
+  private final int hashCode;
+
+  /**
+   * @param bits
+   * @param others
+   */
+  private StyleSet(long bits, Style[] others) {
+    this.bits = bits;
+    this.others = others;
+
+    int hashCode = 0;
+    for (Style style : this) {
+      hashCode += style == null ? 0 : style.hashCode();
+    }
+    this.hashCode = hashCode;
+  }
+
+  /**
+   * @param styles
+   * @return the set of {@code styles}.
+   */
+  public static StyleSet of(Iterable<? extends Style> styles) {
+    if (styles instanceof StyleSet) {
+      return (StyleSet) styles;
+    }
+
+    StyleSet result = EMPTY;
+    for (Style style : styles) {
+      result = result.with(style);
+    }
+
+    return result;
+  }
+
+  /**
+   * @param style
+   * @return the set of {@code style} alone.
+   */
+  public static StyleSet of(Style style) {
+    return EMPTY.with(style);
+  }
+
+  /**
+   * @param style
+   * @return the set of the styles of this set and {@code style}, which is this set if it already
+   *     contains {@code style}.
+   */
+  public StyleSet with(Style style) {
+    if (style == null || style instanceof SimpleStyle) {
+      long bit = bit(style);
+      if ((bits & bit) != 0) {
+        return this;
+      }
+
+      return intern(new StyleSet(bits | bit, others));
+    }
+
+    int index = Arrays.binarySearch(others, style, ORDER);
+    if (index >= 0 && others[index].equals(style)) {
+      return this;
+    }
+
+    // styles of an unknown kind may compare equal without being so
+    for (Style other : others) {
+      if (other.equals(style)) {
+        return this;
+      }
+    }
+
+    int insertion = index >= 0 ? index + 1 : -index - 1;
+    Style[] added = new Style[others.length + 1];
+    System.arraycopy(others, 0, added, 0, insertion);
+    added[insertion] = style;
+    System.arraycopy(others, insertion, added, insertion + 1, others.length - insertion);
+
+    return intern(new StyleSet(bits, added));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean contains(Object o) {
+    if (o == null || o instanceof SimpleStyle) {
+      return (bits & bit((Style) o)) != 0;
+    }
+
+    for (Style other : others) {
+      if (other.equals(o)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int size() {
+    return Long.bitCount(bits) + others.length;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean isEmpty() {
+    return bits == 0 && others.length == 0;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Iterator<Style> iterator() {
+    return new Iterator<Style>() {
+      private long remaining = bits;
+
+      private int index;
+
+      @Override
+      public boolean hasNext() {
+        return remaining != 0 || index < others.length;
+      }
+
+      @Override
+      public Style next() {
+        if ((remaining & NULL_BIT) != 0) {
+          remaining &= ~NULL_BIT;
+          return null;
+        } else if (remaining != 0) {
+          int ordinal = Long.numberOfTrailingZeros(remaining);
+          remaining &= remaining - 1;
+          return SIMPLE_STYLES[ordinal];
+        } else if (index < others.length) {
+          return others[index++];
+        }
+
+        throw new NoSuchElementException();
+      }
+    };
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    } else if (o instanceof StyleSet) {
+      StyleSet other = (StyleSet) o;
+      return bits == other.bits
+          && hashCode == other.hashCode
+          && Arrays.equals(others, other.others);
+    }
+
+    return super.equals(o);
+  }
+
+  /**
+   * @param set
+   * @return the set equal to {@code set} interned before, or {@code set} itself.
+   */
+  private static StyleSet intern(StyleSet set) {
+    for (Object collected; (collected = COLLECTED.poll()) != null; ) {
+      Entry entry = (Entry) collected;
+      INTERNED.remove(entry.key, entry);
+    }
+
+    Key key = new Key(set);
+    Entry created = null;
+    while (true) {
+      Entry entry = INTERNED.get(key);
+      if (entry != null) {
+        StyleSet interned = entry.get();
+        if (interned != null) {
+          return interned;
+        }
+
+        // collected but not polled yet
+        INTERNED.remove(key, entry);
+      }
+
+      if (created == null) {
+        created = new Entry(set, key);
+      }
+      if (INTERNED.putIfAbsent(key, created) == null) {
+        return set;
+      }
+    }
+  }
+
+  private static long bit(Style style) {
+    return style == null ? NULL_BIT : 1L << ((SimpleStyle) style).ordinal();
+  }
+
+  private static int rank(Style style) {
+    if (style instanceof StartMarginStyle) {
+      return 0;
+    } else if (style instanceof EndMarginStyle) {
+      return 1;
+    } else if (style instanceof FontSizeStyle) {
+      return 2;
+    } else if (style instanceof WidthStyle) {
+      return 3;
+    }
+
+    return 4;
+  }
+
+  private static int parameter(Style style) {
+    if (style instanceof StartMarginStyle) {
+      return ((StartMarginStyle) style).getWidth();
+    } else if (style instanceof EndMarginStyle) {
+      return ((EndMarginStyle) style).getWidth();
+    } else if (style instanceof FontSizeStyle) {
+      return ((FontSizeStyle) style).getLevel();
+    } else if (style instanceof WidthStyle) {
+      return ((WidthStyle) style).getWidth();
+    }
+
+    return style.hashCode();
+  }
+
+  /** The contents of an interned set, which do not keep the set reachable. */
+  private static final class Key {
+
+    private final long bits;
+
+    private final Style[] others;
+
+    private final int hashCode;
+
+    /**
+     * @param set
+     */
+    Key(StyleSet set) {
+      bits = set.bits;
+      others = set.others;
+      hashCode = set.hashCode;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      } else if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key other = (Key) o;
+      return bits == other.bits
+          && hashCode == other.hashCode
+          && Arrays.equals(others, other.others);
+    }
+  }
+
+  /** An interned set, removed from {@link #INTERNED} by its key once collected. */
+  private static final class Entry extends WeakReference<StyleSet> {
+
+    private final Key key;
+
+    /**
+     * @param set
+     * @param key
+     */
+    Entry(StyleSet set, Key key) {
+      super(set, COLLECTED);
+      this.key = key;
+    }
+  }
+}
@@ -4,37 +4,35 @@
 
 package org.dacci.tsugumi.doc;
 
-import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedHashSet;
-import java.util.Set;
-
 /**
+ * An immutable segment with styles.
+ *
  * @author dacci
  */
 public class StyledSegment implements Segment {
 
-  private Segment segment;
+  private final Segment segment;
 
-  private final Set<Style> styles = new LinkedHashSet<>();
+  private final StyleSet styles;
 
   /**
    * @param segment
    */
   public StyledSegment(Segment segment) {
-    this.segment = segment;
+    this(segment, StyleSet.EMPTY);
   }
 
   /**
    * @param segment
-   * @param styles
+   * @param styles the styles, which must not contain {@code null}
    */
-  private StyledSegment(Segment segment, Set<Style> styles) {
-    this.segment = segment;
-
-    for (Style style : styles) {
-      this.styles.add(style.copy());
+  public StyledSegment(Segment segment, StyleSet styles) {
+    if (styles.contains(null)) {
+      throw new NullPointerException();
     }
+
+    this.segment = segment;
+    this.styles = styles;
   }
 
   /**
@@ -45,34 +43,10 @@ public class StyledSegment implements Segment {
   }
 
   /**
-   * @param segment the segment to set
-   */
-  public void setSegment(Segment segment) {
-    this.segment = segment;
-  }
-
-  /**
-   * @param style
    * @return
    */
-  public boolean addStyle(Style style) {
-    if (style == null) {
-      throw new NullPointerException();
-    }
-
-    return styles.add(style);
-  }
-
-  /** */
-  public void clearStyles() {
-    styles.clear();
-  }
-
-  /**
-   * @return
-   */
-  public Collection<Style> styles() {
-    return Collections.unmodifiableCollection(styles);
+  public StyleSet styles() {
+    return styles;
   }
 
   /** {@InheritDoc} */
@@ -104,4 +78,10 @@ public class StyledSegment implements Segment {
   public Segment subSequence(int start, int end) {
     return new StyledSegment(segment.subSequence(start, end), styles);
   }
+
+  /** {@inheritDoc} */
+  @Override
+  public <R, X extends Exception> R accept(SegmentVisitor<R, X> visitor) throws X {
+    return visitor.visitStyled(this);
+  }
 }
@@ -5,37 +5,58 @@
 package org.dacci.tsugumi.doc;
 
 /**
+ * An immutable range of a string.
+ *
+ * <p>Sub-sequences refer to the same string instead of copying their characters, so a line can be
+ * split into segments any number of times while all of them share the text of the line.
+ *
  * @author dacci
  */
 public class TextSegment implements Segment {
 
-  private String text;
+  private final String text;
+
+  private final int start;
+
+  private final int end;
 
   /**
    * @param text
    */
   public TextSegment(String text) {
-    this.text = text;
+    this(text, 0, text.length());
   }
 
   /**
-   * @return the text
+   * @param text the string to refer to
+   * @param start
+   * @param end
    */
-  public String getText() {
-    return text;
+  public TextSegment(String text, int start, int end) {
+    if (start < 0 || end < start || end > text.length()) {
+      throw new StringIndexOutOfBoundsException();
+    }
+
+    this.text = text;
+    this.start = start;
+    this.end = end;
   }
 
   /**
-   * @param text the text to set
+   * @return the text, which is copied out of the string referred to only if it is a part of it.
    */
-  public void setText(String text) {
-    this.text = text;
+  public String getText() {
+    if (start == 0 && end == text.length()) {
+      return text;
+    }
+
+    return text.substring(start, end);
   }
 
   /** {@inheritDoc} */
   @Override
   public String toString() {
-    return text.toString();
+    return getText();
   }
 
   /** {@inheritDoc} */
@@ -47,24 +68,38 @@ public class TextSegment implements Segment {
   /** {@inheritDoc} */
   @Override
   public StringBuilder toString(StringBuilder builder) {
-    return builder.append(text);
+    return builder.append(text, start, end);
   }
 
   /** {@inheritDoc} */
   @Override
   public int length() {
-    return text.length();
+    return end - start;
   }
 
   /** {@inheritDoc} */
   @Override
   public char charAt(int index) {
-    return text.charAt(index);
+    if (index < 0 || index >= end - start) {
+      throw new StringIndexOutOfBoundsException(index);
+    }
+
+    return text.charAt(start + index);
   }
 
   /** {@inheritDoc} */
   @Override
   public Segment subSequence(int start, int end) {
-    return new TextSegment(text.substring(start, end));
+    if (start < 0 || end < start || end > this.end - this.start) {
+      throw new StringIndexOutOfBoundsException();
+    }
+
+    return new TextSegment(text, this.start + start, this.start + end);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public <R, X extends Exception> R accept(SegmentVisitor<R, X> visitor) throws X {
+    return visitor.visitText(this);
   }
 }
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dacci.tsugumi.doc.Block;
+import org.dacci.tsugumi.doc.Book;
+import org.dacci.tsugumi.doc.BookElement;
+import org.dacci.tsugumi.doc.BookProperty;
+import org.dacci.tsugumi.doc.Chapter;
+import org.dacci.tsugumi.doc.ChapterLoadException;
+import org.dacci.tsugumi.doc.DocumentWalker;
+import org.dacci.tsugumi.doc.Paragraph;
+import org.dacci.tsugumi.doc.Style;
+import org.dacci.tsugumi.doc.StyleSet;
+
+/**
+ * Collects the events into a {@link Book}.
+ *
+ * @author dacci
+ */
+public class BookBuilder implements BookSink {
+
+  /** A block whose elements are being collected. */
+  private static final class OpenBlock {
+
+    private StyleSet styles;
+
+    private final List<BookElement> elements = new ArrayList<>();
+
+    /**
+     * @param styles
+     */
+    OpenBlock(StyleSet styles) {
+      this.styles = styles;
+    }
+
+    /**
+     * @return the block of the elements collected.
+     */
+    Block toBlock() {
+      return new Block(styles, elements);
+    }
+  }
+
+  private final Book.Builder book = new Book.Builder();
+
+  /** The properties of the chapter being collected, or {@code null} if not in a chapter. */
+  private Map<BookProperty, String> chapterProperties = null;
+
+  private final List<Path> chapterResources = new ArrayList<>();
+
+  private final Deque<OpenBlock> blockStack = new LinkedList<>();
+
+  /**
+   * Sends the whole content of {@code book} to {@code sink}.
+   *
+   * @param book
+   * @param sink
+   * @throws BuildException
+   * @throws ParseException if a chapter of {@code book} parsed lazily fails to parse.
+   */
+  public static void replay(Book book, BookSink sink) throws BuildException, ParseException {
+    sink.startBook();
+
+    for (BookProperty key : BookProperty.values()) {
+      if (book.hasProperty(key)) {
+        sink.property(key, book.getProperty(key));
+      }
+    }
+
+    Set<Path> resources = new HashSet<>();
+    replayResources(book.resources(), sink, resources);
+
+    for (Chapter chapter : book.chapters()) {
+      // a chapter parsed lazily knows its resources once loaded
+      Block root;
+      try {
+        root = chapter.getRoot();
+      } catch (ChapterLoadException e) {
+        if (e.getCause() instanceof ParseException) {
+          throw (ParseException) e.getCause();
+        }
+
+        throw new ParseException(0, e.getCause());
+      }
+
+      replayResources(chapter.resources(), sink, resources);
+
+      sink.startChapter();
+
+      for (BookProperty key : BookProperty.values()) {
+        if (chapter.hasProperty(key)) {
+          sink.chapterProperty(key, chapter.getProperty(key));
+        }
+      }
+
+      for (Style style : root.styles()) {
+        sink.chapterStyle(style);
+      }
+
+      replay(root, sink);
+      sink.endChapter();
+    }
+
+    sink.endBook();
+  }
+
+  /**
+   * @param resources
+   * @param sink
+   * @param sent the resources sent already, to which those sent by this call are added
+   * @throws BuildException
+   */
+  private static void replayResources(Iterable<Path> resources, BookSink sink, Set<Path> sent)
+      throws BuildException {
+    for (Path path : resources) {
+      if (sent.add(path)) {
+        sink.resource(path);
+      }
+    }
+  }
+
+  /**
+   * @param block
+   * @param sink
+   * @throws BuildException
+   */
+  private static void replay(Block block, final BookSink sink) throws BuildException {
+    new DocumentWalker<BuildException>() {
+      @Override
+      protected void startBlock(Block block) throws BuildException {
+        sink.startBlock(block.styles());
+      }
+
+      @Override
+      protected void endBlock(Block block) throws BuildException {
+        sink.endBlock();
+      }
+
+      @Override
+      protected void paragraph(Paragraph paragraph) throws BuildException {
+        sink.paragraph(paragraph);
+      }
+    }.walk(block);
+  }
+
+  /**
+   * @return the book built so far, without the chapter being collected if any
+   */
+  public Book getBook() {
+    return book.build();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startBook() {}
+
+  /** {@inheritDoc} */
+  @Override
+  public void property(BookProperty key, String value) {
+    book.setProperty(key, value);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void resource(Path path) {
+    book.addResource(path);
+
+    if (chapterProperties != null) {
+      chapterResources.add(path);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startChapter() {
+    chapterProperties = new EnumMap<>(BookProperty.class);
+    chapterResources.clear();
+    blockStack.clear();
+    blockStack.push(new OpenBlock(StyleSet.EMPTY));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void chapterProperty(BookProperty key, String value) {
+    chapterProperties.put(key, value);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void chapterStyle(Style style) {
+    OpenBlock root = blockStack.getLast();
+    root.styles = root.styles.with(style);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startBlock(Collection<Style> styles) {
+    blockStack.push(new OpenBlock(StyleSet.of(styles)));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void paragraph(Paragraph paragraph) {
+    blockStack.peek().elements.add(paragraph);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endBlock() {
+    Block block = blockStack.pop().toBlock();
+    blockStack.peek().elements.add(block);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endChapter() {
+    while (blockStack.size() > 1) {
+      endBlock();
+    }
+
+    book.addChapter(new Chapter(chapterProperties, blockStack.pop().toBlock(), chapterResources));
+    chapterProperties = null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endBook() {}
+
+  /** {@inheritDoc} */
+  @Override
+  public void abort() {
+    blockStack.clear();
+    chapterProperties = null;
+  }
+}
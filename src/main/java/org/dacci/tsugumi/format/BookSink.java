@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format;
+
+import java.nio.file.Path;
+import java.util.Collection;
+
+import org.dacci.tsugumi.doc.BookProperty;
+import org.dacci.tsugumi.doc.Paragraph;
+import org.dacci.tsugumi.doc.Style;
+
+/**
+ * Receives the content of a book as it is parsed, so that a builder can consume it without the
+ * whole book being held in memory.
+ *
+ * <p>Events arrive in document order: {@link #startBook()}, then any number of chapters, each
+ * enclosed in {@link #startChapter()} and {@link #endChapter()} with properly nested blocks, and
+ * finally {@link #endBook()}. Book properties and resources may arrive at any point in between.
+ *
+ * @author dacci
+ */
+public interface BookSink {
+
+  /**
+   * @throws BuildException
+   */
+  void startBook() throws BuildException;
+
+  /**
+   * @param key
+   * @param value
+   * @throws BuildException
+   */
+  void property(BookProperty key, String value) throws BuildException;
+
+  /**
+   * @param path the resource referred to by the following paragraphs
+   * @throws BuildException
+   */
+  void resource(Path path) throws BuildException;
+
+  /**
+   * @throws BuildException
+   */
+  void startChapter() throws BuildException;
+
+  /**
+   * @param key
+   * @param value
+   * @throws BuildException
+   */
+  void chapterProperty(BookProperty key, String value) throws BuildException;
+
+  /**
+   * @param style the style to add to the whole chapter
+   * @throws BuildException
+   */
+  void chapterStyle(Style style) throws BuildException;
+
+  /**
+   * @param styles
+   * @throws BuildException
+   */
+  void startBlock(Collection<Style> styles) throws BuildException;
+
+  /**
+   * @param paragraph
+   * @throws BuildException
+   */
+  void paragraph(Paragraph paragraph) throws BuildException;
+
+  /**
+   * @throws BuildException
+   */
+  void endBlock() throws BuildException;
+
+  /**
+   * @throws BuildException
+   */
+  void endChapter() throws BuildException;
+
+  /**
+   * @throws BuildException
+   */
+  void endBook() throws BuildException;
+
+  /**
+   * Discards whatever has been built so far, after the source turned out to be broken or the stream
+   * failed for any other reason. A failed {@link #endBook()} discards the output by itself, so
+   * calling this afterward does nothing.
+   */
+  void abort();
+}
@@ -4,6 +4,7 @@
 
 package org.dacci.tsugumi.format;
 
+import java.io.IOException;
 import java.nio.file.Path;
 
 import org.dacci.tsugumi.doc.Book;
@@ -15,13 +16,53 @@ public interface Format {
 
   String OUTPUT_PATH = "OutputPath";
 
+  String PARALLEL = "Parallel";
+
+  String LAZY = "Lazy";
+
+  String METADATA_ONLY = "MetadataOnly";
+
+  String INCREMENTAL = "Incremental";
+
+  String SAVE_INDEX = "SaveIndex";
+
   default void setProperty(String key, Object value) {}
 
   boolean isParseSupported();
 
   Book parse(Path path) throws ParseException;
 
+  /**
+   * Parses {@code path}, sending the content to {@code sink} as it is read.
+   *
+   * @param path
+   * @param sink
+   * @throws ParseException
+   */
+  default void parse(Path path, BookSink sink) throws ParseException {
+    try (Book book = parse(path)) {
+      BookBuilder.replay(book, sink);
+    } catch (BuildException | IOException e) {
+      throw new ParseException(0, e);
+    }
+  }
+
   boolean isBuildSupported();
 
-  Path build(Book book) throws BuildException;
+  /**
+   * @param book
+   * @return the file built.
+   * @throws BuildException
+   * @throws ParseException if a chapter of {@code book} parsed lazily fails to parse.
+   */
+  Path build(Book book) throws BuildException, ParseException;
+
+  /**
+   * @return a sink that builds a book from the events it receives. The result is available once
+   *     {@link BookSink#endBook()} has returned.
+   * @throws BuildException
+   */
+  default BookSink newSink() throws BuildException {
+    throw new UnsupportedOperationException();
+  }
 }
@@ -4,104 +4,165 @@
 
 package org.dacci.tsugumi.format.aozora;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
+ * Decomposes the accented characters written in ASCII, such as {@code a`} for {@code à}.
+ *
+ * <p>The notations are kept in a trie rooted at {@link #ROOT}, so a text is rewritten in a single
+ * pass from left to right, always taking the longest notation at each position ({@code AE&} wins
+ * over {@code A&}).
+ *
  * @author dacci
  */
 final class AozoraAccentMap {
 
-  private static final Map<Pattern, String> ACCENT_MAP;
+  /** Every notation consists of printable ASCII characters. */
+  private static final int ALPHABET_SIZE = 0x80;
+
+  /** A node of the trie. */
+  private static final class Node {
+
+    private final Node[] children = new Node[ALPHABET_SIZE];
+
+    /** The character of the notation ending at this node, or {@code null}. */
+    private String replacement;
+  }
+
+  private static final Node ROOT = new Node();
 
   static {
-    Map<Pattern, String> map = new HashMap<>();
-
-    map.put(Pattern.compile("!@", Pattern.LITERAL), Matcher.quoteReplacement("¡"));
-    map.put(Pattern.compile("?@", Pattern.LITERAL), Matcher.quoteReplacement("¿"));
-    map.put(Pattern.compile("A`", Pattern.LITERAL), Matcher.quoteReplacement("À"));
-    map.put(Pattern.compile("A'", Pattern.LITERAL), Matcher.quoteReplacement("Á"));
-    map.put(Pattern.compile("A^", Pattern.LITERAL), Matcher.quoteReplacement("Â"));
-    map.put(Pattern.compile("A~", Pattern.LITERAL), Matcher.quoteReplacement("Ã"));
-    map.put(Pattern.compile("A:", Pattern.LITERAL), Matcher.quoteReplacement("Ä"));
-    map.put(Pattern.compile("A&", Pattern.LITERAL), Matcher.quoteReplacement("Å"));
-    map.put(Pattern.compile("AE&", Pattern.LITERAL), Matcher.quoteReplacement("Æ"));
-    map.put(Pattern.compile("C,", Pattern.LITERAL), Matcher.quoteReplacement("Ç"));
-    map.put(Pattern.compile("E`", Pattern.LITERAL), Matcher.quoteReplacement("È"));
-    map.put(Pattern.compile("E'", Pattern.LITERAL), Matcher.quoteReplacement("É"));
-    map.put(Pattern.compile("E^", Pattern.LITERAL), Matcher.quoteReplacement("Ê"));
-    map.put(Pattern.compile("E:", Pattern.LITERAL), Matcher.quoteReplacement("Ë"));
-    map.put(Pattern.compile("I`", Pattern.LITERAL), Matcher.quoteReplacement("Ì"));
-    map.put(Pattern.compile("I'", Pattern.LITERAL), Matcher.quoteReplacement("Í"));
-    map.put(Pattern.compile("I^", Pattern.LITERAL), Matcher.quoteReplacement("Î"));
-    map.put(Pattern.compile("I:", Pattern.LITERAL), Matcher.quoteReplacement("Ï"));
-    map.put(Pattern.compile("N~", Pattern.LITERAL), Matcher.quoteReplacement("Ñ"));
-    map.put(Pattern.compile("O`", Pattern.LITERAL), Matcher.quoteReplacement("Ò"));
-    map.put(Pattern.compile("O'", Pattern.LITERAL), Matcher.quoteReplacement("Ó"));
-    map.put(Pattern.compile("O^", Pattern.LITERAL), Matcher.quoteReplacement("Ô"));
-    map.put(Pattern.compile("O~", Pattern.LITERAL), Matcher.quoteReplacement("Õ"));
-    map.put(Pattern.compile("O:", Pattern.LITERAL), Matcher.quoteReplacement("Ö"));
-    map.put(Pattern.compile("O/", Pattern.LITERAL), Matcher.quoteReplacement("Ø"));
-    map.put(Pattern.compile("U`", Pattern.LITERAL), Matcher.quoteReplacement("Ù"));
-    map.put(Pattern.compile("U'", Pattern.LITERAL), Matcher.quoteReplacement("Ú"));
-    map.put(Pattern.compile("U^", Pattern.LITERAL), Matcher.quoteReplacement("Û"));
-    map.put(Pattern.compile("U:", Pattern.LITERAL), Matcher.quoteReplacement("Ü"));
-    map.put(Pattern.compile("Y'", Pattern.LITERAL), Matcher.quoteReplacement("Ý"));
-    map.put(Pattern.compile("s&", Pattern.LITERAL), Matcher.quoteReplacement("ß"));
-    map.put(Pattern.compile("a`", Pattern.LITERAL), Matcher.quoteReplacement("à"));
-    map.put(Pattern.compile("a'", Pattern.LITERAL), Matcher.quoteReplacement("á"));
-    map.put(Pattern.compile("a^", Pattern.LITERAL), Matcher.quoteReplacement("â"));
-    map.put(Pattern.compile("a~", Pattern.LITERAL), Matcher.quoteReplacement("ã"));
-    map.put(Pattern.compile("a:", Pattern.LITERAL), Matcher.quoteReplacement("ä"));
-    map.put(Pattern.compile("a&", Pattern.LITERAL), Matcher.quoteReplacement("å"));
-    map.put(Pattern.compile("ae&", Pattern.LITERAL), Matcher.quoteReplacement("æ"));
-    map.put(Pattern.compile("c,", Pattern.LITERAL), Matcher.quoteReplacement("ç"));
-    map.put(Pattern.compile("e`", Pattern.LITERAL), Matcher.quoteReplacement("è"));
-    map.put(Pattern.compile("e'", Pattern.LITERAL), Matcher.quoteReplacement("é"));
-    map.put(Pattern.compile("e^", Pattern.LITERAL), Matcher.quoteReplacement("ê"));
-    map.put(Pattern.compile("e:", Pattern.LITERAL), Matcher.quoteReplacement("ë"));
-    map.put(Pattern.compile("i`", Pattern.LITERAL), Matcher.quoteReplacement("ì"));
-    map.put(Pattern.compile("i'", Pattern.LITERAL), Matcher.quoteReplacement("í"));
-    map.put(Pattern.compile("i^", Pattern.LITERAL), Matcher.quoteReplacement("î"));
-    map.put(Pattern.compile("i:", Pattern.LITERAL), Matcher.quoteReplacement("ï"));
-    map.put(Pattern.compile("n~", Pattern.LITERAL), Matcher.quoteReplacement("ñ"));
-    map.put(Pattern.compile("o`", Pattern.LITERAL), Matcher.quoteReplacement("ò"));
-    map.put(Pattern.compile("o'", Pattern.LITERAL), Matcher.quoteReplacement("ó"));
-    map.put(Pattern.compile("o^", Pattern.LITERAL), Matcher.quoteReplacement("ô"));
-    map.put(Pattern.compile("o~", Pattern.LITERAL), Matcher.quoteReplacement("õ"));
-    map.put(Pattern.compile("o:", Pattern.LITERAL), Matcher.quoteReplacement("ö"));
-    map.put(Pattern.compile("o/", Pattern.LITERAL), Matcher.quoteReplacement("ø"));
-    map.put(Pattern.compile("u`", Pattern.LITERAL), Matcher.quoteReplacement("ù"));
-    map.put(Pattern.compile("u'", Pattern.LITERAL), Matcher.quoteReplacement("ú"));
-    map.put(Pattern.compile("u^", Pattern.LITERAL), Matcher.quoteReplacement("û"));
-    map.put(Pattern.compile("u:", Pattern.LITERAL), Matcher.quoteReplacement("ü"));
-    map.put(Pattern.compile("y'", Pattern.LITERAL), Matcher.quoteReplacement("ý"));
-    map.put(Pattern.compile("y:", Pattern.LITERAL), Matcher.quoteReplacement("ÿ"));
-    map.put(Pattern.compile("A_", Pattern.LITERAL), Matcher.quoteReplacement("Ā"));
-    map.put(Pattern.compile("a_", Pattern.LITERAL), Matcher.quoteReplacement("ā"));
-    map.put(Pattern.compile("E_", Pattern.LITERAL), Matcher.quoteReplacement("Ē"));
-    map.put(Pattern.compile("e_", Pattern.LITERAL), Matcher.quoteReplacement("ē"));
-    map.put(Pattern.compile("I_", Pattern.LITERAL), Matcher.quoteReplacement("Ī"));
-    map.put(Pattern.compile("i_", Pattern.LITERAL), Matcher.quoteReplacement("ī"));
-    map.put(Pattern.compile("O_", Pattern.LITERAL), Matcher.quoteReplacement("Ō"));
-    map.put(Pattern.compile("o_", Pattern.LITERAL), Matcher.quoteReplacement("ō"));
-    map.put(Pattern.compile("OE&", Pattern.LITERAL), Matcher.quoteReplacement("Œ"));
-    map.put(Pattern.compile("oe&", Pattern.LITERAL), Matcher.quoteReplacement("œ"));
-    map.put(Pattern.compile("U_", Pattern.LITERAL), Matcher.quoteReplacement("Ū"));
-    map.put(Pattern.compile("u_", Pattern.LITERAL), Matcher.quoteReplacement("ū"));
-
-    ACCENT_MAP = Collections.unmodifiableMap(map);
+    put("!@", "¡");
+    put("?@", "¿");
+    put("A`", "À");
+    put("A'", "Á");
+    put("A^", "Â");
+    put("A~", "Ã");
+    put("A:", "Ä");
+    put("A&", "Å");
+    put("AE&", "Æ");
+    put("C,", "Ç");
+    put("E`", "È");
+    put("E'", "É");
+    put("E^", "Ê");
+    put("E:", "Ë");
+    put("I`", "Ì");
+    put("I'", "Í");
+    put("I^", "Î");
+    put("I:", "Ï");
+    put("N~", "Ñ");
+    put("O`", "Ò");
+    put("O'", "Ó");
+    put("O^", "Ô");
+    put("O~", "Õ");
+    put("O:", "Ö");
+    put("O/", "Ø");
+    put("U`", "Ù");
+    put("U'", "Ú");
+    put("U^", "Û");
+    put("U:", "Ü");
+    put("Y'", "Ý");
+    put("s&", "ß");
+    put("a`", "à");
+    put("a'", "á");
+    put("a^", "â");
+    put("a~", "ã");
+    put("a:", "ä");
+    put("a&", "å");
+    put("ae&", "æ");
+    put("c,", "ç");
+    put("e`", "è");
+    put("e'", "é");
+    put("e^", "ê");
+    put("e:", "ë");
+    put("i`", "ì");
+    put("i'", "í");
+    put("i^", "î");
+    put("i:", "ï");
+    put("n~", "ñ");
+    put("o`", "ò");
+    put("o'", "ó");
+    put("o^", "ô");
+    put("o~", "õ");
+    put("o:", "ö");
+    put("o/", "ø");
+    put("u`", "ù");
+    put("u'", "ú");
+    put("u^", "û");
+    put("u:", "ü");
+    put("y'", "ý");
+    put("y:", "ÿ");
+    put("A_", "Ā");
+    put("a_", "ā");
+    put("E_", "Ē");
+    put("e_", "ē");
+    put("I_", "Ī");
+    put("i_", "ī");
+    put("O_", "Ō");
+    put("o_", "ō");
+    put("OE&", "Œ");
+    put("oe&", "œ");
+    put("U_", "Ū");
+    put("u_", "ū");
   }
 
+  /**
+   * @param notation
+   * @param replacement
+   */
+  private static void put(String notation, String replacement) {
+    Node node = ROOT;
+    for (int i = 0; i < notation.length(); ++i) {
+      char c = notation.charAt(i);
+      if (node.children[c] == null) {
+        node.children[c] = new Node();
+      }
+      node = node.children[c];
+    }
+
+    node.replacement = replacement;
+  }
+
+  /**
+   * @param input
+   * @return the text with every notation replaced, or {@code input} itself if none was found.
+   */
   public static String replaceAll(String input) {
-    for (Map.Entry<Pattern, String> entry : ACCENT_MAP.entrySet()) {
-      input = entry.getKey().matcher(input).replaceAll(entry.getValue());
+    StringBuilder builder = null;
+    int copied = 0;
+
+    for (int i = 0, l = input.length(); i < l; ) {
+      String replacement = null;
+      int end = i;
+
+      Node node = ROOT;
+      for (int j = i; j < l; ++j) {
+        char c = input.charAt(j);
+        if (c >= ALPHABET_SIZE || (node = node.children[c]) == null) {
+          break;
+        }
+
+        if (node.replacement != null) {
+          replacement = node.replacement;
+          end = j + 1;
+        }
+      }
+
+      if (replacement == null) {
+        ++i;
+        continue;
+      }
+
+      if (builder == null) {
+        builder = new StringBuilder(input.length());
+      }
+      builder.append(input, copied, i).append(replacement);
+      i = copied = end;
+    }
+
+    if (builder == null) {
+      return input;
     }
 
-    return input;
+    return builder.append(input, copied, input.length()).toString();
   }
 
   private AozoraAccentMap() {}
@@ -4,36 +4,38 @@
 
 package org.dacci.tsugumi.format.aozora;
 
-import java.io.BufferedReader;
 import java.io.EOFException;
 import java.io.IOException;
-import java.lang.Character.UnicodeBlock;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.file.Files;
+import java.nio.charset.UnmappableCharacterException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.regex.MatchResult;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.commons.lang3.tuple.MutablePair;
-import org.dacci.tsugumi.Util;
-import org.dacci.tsugumi.doc.Block;
 import org.dacci.tsugumi.doc.Book;
 import org.dacci.tsugumi.doc.BookProperty;
 import org.dacci.tsugumi.doc.Chapter;
-import org.dacci.tsugumi.doc.EndMarginStyle;
-import org.dacci.tsugumi.doc.FontSizeStyle;
+import org.dacci.tsugumi.doc.DocumentWalker;
 import org.dacci.tsugumi.doc.Fragment;
 import org.dacci.tsugumi.doc.ImageMarker;
 import org.dacci.tsugumi.doc.Paragraph;
@@ -41,13 +43,18 @@ import org.dacci.tsugumi.doc.RubySegment;
 import org.dacci.tsugumi.doc.Segment;
 import org.dacci.tsugumi.doc.SimpleMarker;
 import org.dacci.tsugumi.doc.SimpleStyle;
-import org.dacci.tsugumi.doc.StartMarginStyle;
 import org.dacci.tsugumi.doc.Style;
+import org.dacci.tsugumi.doc.StyleSet;
 import org.dacci.tsugumi.doc.StyledSegment;
-import org.dacci.tsugumi.doc.WidthStyle;
+import org.dacci.tsugumi.doc.TextSegment;
+import org.dacci.tsugumi.format.BookBuilder;
+import org.dacci.tsugumi.format.BookSink;
 import org.dacci.tsugumi.format.BuildException;
 import org.dacci.tsugumi.format.Format;
 import org.dacci.tsugumi.format.ParseException;
+import org.dacci.tsugumi.format.aozora.AozoraLexer.Token;
+import org.dacci.tsugumi.format.aozora.AozoraLexer.TokenType;
+import org.dacci.tsugumi.format.aozora.DeadlineCharSequence.DeadlineExceededException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,37 +65,54 @@ public class AozoraFormat implements Format {
 
   private static final Logger LOG = LoggerFactory.getLogger(AozoraFormat.class);
 
-  private static final String CHARSET_NAME = "x-SJIS_0213";
+  /** The revision of the parser, to be raised whenever a book may be parsed differently. */
+  private static final int REVISION = 2;
 
-  private static final Charset CHARSET = Charset.forName(CHARSET_NAME);
-
-  private static final CharsetDecoder DECODER = CHARSET.newDecoder();
+  /**
+   * Identifies the parser, along with the version of the tool if known, so that the chapter indexes
+   * and the chapters cached by another version are not used.
+   */
+  static final String PARSER_VERSION =
+      REVISION + "/" + String.valueOf(AozoraFormat.class.getPackage().getImplementationVersion());
 
   private static final Pattern LEGEND_MARK_PATTERN = Pattern.compile("-+");
 
   private static final Pattern BLOCK_TAG_PATTERN = Pattern.compile("［＃((ここ|改).+?|本文終わり)］");
 
+  /** The line ending the main text, matched by {@link #BLOCK_TAG_PATTERN} as nothing else is. */
+  private static final String END_OF_TEXT = "［＃本文終わり］";
+
+  /** The number of lines interpreted in parallel while the lines before are applied. */
+  private static final int BATCH_SIZE = 8192;
+
   private static final Pattern PROPERTY_TAG_PATTERN = Pattern.compile("［＃(.+?)＝(.*)］");
 
-  private static final Pattern TAG_PATTERN = Pattern.compile("［＃(.+?)］");
+  /** Time allowed to interpret a single line before it is kept as plain text. */
+  private static final long LINE_TIME_LIMIT = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * Characters of JIS X 0213 indexed by plane, row and cell, as entries of {@link ShiftJis2004}.
+   */
+  private static final int[] JIS_X_0213 = new int[2 * 94 * 94];
+
+  static {
+    for (int plane = 1, i = 0; plane <= 2; ++plane) {
+      for (int row = 1; row <= 94; ++row) {
+        for (int cell = 1; cell <= 94; ++cell, ++i) {
+          int code = toShiftJis(plane, row, cell);
+          JIS_X_0213[i] = ShiftJis2004.lookup(code >> 8, code & 0xFF);
+        }
+      }
+    }
+  }
 
   /**
    * @param plane
    * @param row
    * @param cell
-   * @throws CharacterCodingException
+   * @return the Shift_JIS-2004 bytes of the character packed into an int.
    */
-  private static String decodeChar(int plane, int row, int cell) throws CharacterCodingException {
-    if (plane < 1 || 2 < plane) {
-      throw new IllegalArgumentException("illegal plane: " + plane);
-    }
-    if (row < 1 || 94 < row) {
-      throw new IllegalArgumentException("illegal row: " + row);
-    }
-    if (cell < 1 || 94 < cell) {
-      throw new IllegalArgumentException("illegal cell: " + cell);
-    }
-
+  private static int toShiftJis(int plane, int row, int cell) {
     int s1 = (row + 33) / 2, s2 = cell;
 
     if (1 <= row && row <= 62) {
@@ -113,806 +137,1973 @@ public class AozoraFormat implements Format {
       }
     }
 
-    ByteBuffer buffer = ByteBuffer.wrap(new byte[] {(byte) s1, (byte) s2});
-    return DECODER.decode(buffer).toString();
+    return s1 << 8 | s2;
   }
 
-  private static MutablePair<String, Style> mapToStyle(String tag) {
-    boolean left = false;
-    if (tag.startsWith("左に")) {
-      tag = tag.substring(2);
-      left = true;
+  /**
+   * Appends the character of JIS X 0213 at the specified men-ku-ten.
+   *
+   * @param builder
+   * @param plane
+   * @param row
+   * @param cell
+   * @return {@code builder}
+   * @throws CharacterCodingException
+   */
+  static StringBuilder appendChar(StringBuilder builder, int plane, int row, int cell)
+      throws CharacterCodingException {
+    if (plane < 1 || 2 < plane) {
+      throw new IllegalArgumentException("illegal plane: " + plane);
+    }
+    if (row < 1 || 94 < row) {
+      throw new IllegalArgumentException("illegal row: " + row);
+    }
+    if (cell < 1 || 94 < cell) {
+      throw new IllegalArgumentException("illegal cell: " + cell);
     }
 
-    MutablePair<String, Style> pair = MutablePair.of(tag, null);
+    int entry = JIS_X_0213[((plane - 1) * 94 + row - 1) * 94 + cell - 1];
+    if (entry == 0) {
+      throw new UnmappableCharacterException(2);
+    }
 
-    if (tag.endsWith("字下げ")) {
-      pair.left = "字下げ";
+    return ShiftJis2004.append(builder, entry);
+  }
 
-      if (tag.indexOf('、') == -1) {
-        int width = Util.parseInt(tag.substring(0, tag.length() - 3));
-        pair.right = new StartMarginStyle(width);
-      } else {
-        pair.right = new StartMarginStyle(0);
-        LOG.warn("Unsupported indentation: {}", tag);
-      }
-    } else if (tag.endsWith("字上げ")) {
-      pair.left = "字上げ";
-
-      int width = Util.parseInt(tag.substring(3, tag.length() - 3));
-      pair.right = new EndMarginStyle(width);
-    } else if (tag.endsWith("字詰め")) {
-      pair.left = "字詰め";
-
-      int width = Util.parseInt(tag.substring(0, tag.length() - 3));
-      pair.right = new WidthStyle(width);
-    } else if (tag.endsWith("な文字")) {
-      int level = 1, type;
-      if (tag.length() > 5) {
-        pair.left = tag.substring(tag.length() - 5);
-        level = Util.parseInt(tag.substring(0, tag.length() - 7));
-        type = tag.codePointAt(3);
+  /** The outcome of interpreting a line of the main text, applied to the book in order. */
+  private static final class ParsedLine {
+
+    private final int row;
+
+    /** The value of {@link System#nanoTime()} to give up interpreting the line at. */
+    private final long deadline = System.nanoTime() + LINE_TIME_LIMIT;
+
+    private String blockTag;
+
+    private String propertyKey;
+
+    private String propertyValue;
+
+    private boolean pageCenter;
+
+    private Paragraph paragraph;
+
+    private final List<Path> resources = new ArrayList<>(0);
+
+    /** The problems found in the line, added to those of the book when the line is applied. */
+    private final Diagnostics diagnostics = new Diagnostics();
+
+    /** Thrown when the line is applied, so that lines never reached do not fail the parse. */
+    private Exception error;
+
+    /**
+     * @param row
+     */
+    ParsedLine(int row) {
+      this.row = row;
+    }
+
+    /**
+     * @param input
+     * @return {@code input} wrapped so that matching it gives up at the deadline of the line.
+     */
+    CharSequence guard(CharSequence input) {
+      return new DeadlineCharSequence(input, deadline);
+    }
+  }
+
+  /** Interprets a range of lines in parallel. */
+  @SuppressWarnings("serial")
+  private static final class InterpretTask extends RecursiveAction {
+
+    private static final int THRESHOLD = 256;
+
+    private final ParseContext context;
+
+    private final List<String> lines;
+
+    private final int firstRow;
+
+    private final ParsedLine[] results;
+
+    private final int start;
+
+    private final int end;
+
+    /**
+     * @param context
+     * @param lines
+     * @param firstRow
+     * @param results
+     * @param start
+     * @param end
+     */
+    InterpretTask(
+        ParseContext context,
+        List<String> lines,
+        int firstRow,
+        ParsedLine[] results,
+        int start,
+        int end) {
+      this.context = context;
+      this.lines = lines;
+      this.firstRow = firstRow;
+      this.results = results;
+      this.start = start;
+      this.end = end;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void compute() {
+      if (end - start <= THRESHOLD) {
+        for (int i = start; i < end; ++i) {
+          results[i] = interpret(context, lines.get(i), firstRow + i);
+        }
+        return;
+      }
+
+      int middle = (start + end) >>> 1;
+      invokeAll(
+          new InterpretTask(context, lines, firstRow, results, start, middle),
+          new InterpretTask(context, lines, firstRow, results, middle, end));
+    }
+  }
+
+  /**
+   * @param tag
+   * @param diagnostics
+   * @param row
+   * @return the style {@code tag} stands for, whose style is {@code null} if the tag is unknown.
+   */
+  private static TagStyle mapToStyle(String tag, Diagnostics diagnostics, int row) {
+    TagStyle tagStyle = TagStyle.of(tag);
+    if (tagStyle.partial) {
+      diagnostics.add(Diagnostics.Kind.UNSUPPORTED_INDENTATION, tag, row);
+    }
+
+    return tagStyle;
+  }
+
+  /** The state of a single call to {@link AozoraFormat#parse(Path, BookSink)}. */
+  private static final class ParseContext {
+
+    private final Path sourcePath;
+
+    private final SourceEncoding encoding;
+
+    private final BookSink sink;
+
+    private final Diagnostics diagnostics;
+
+    private boolean inChapter = false;
+
+    private int row;
+
+    private final Deque<String> blockTypeStack = new LinkedList<>();
+
+    /**
+     * @param sourcePath
+     * @param encoding
+     * @param sink
+     * @param diagnostics
+     */
+    ParseContext(Path sourcePath, SourceEncoding encoding, BookSink sink, Diagnostics diagnostics) {
+      this.sourcePath = sourcePath;
+      this.encoding = encoding;
+      this.sink = sink;
+      this.diagnostics = diagnostics;
+    }
+  }
+
+  /** Interprets the main text in parallel if not {@code null}. */
+  private volatile ForkJoinPool pool = null;
+
+  /** Parses each chapter only when its content is accessed if true. */
+  private volatile boolean lazy = false;
+
+  /** Reads only the properties of the book if true. */
+  private volatile boolean metadataOnly = false;
+
+  /** Reuses the chapters whose source has not changed since the last call if true. */
+  private volatile boolean incremental = false;
+
+  /** Saves the chapter index of a book parsed lazily next to the source file if true. */
+  private volatile boolean saveIndex = false;
+
+  /** {@inheritDoc} */
+  @Override
+  public void setProperty(String key, Object value) {
+    switch (key) {
+      case Format.PARALLEL:
+        pool = Boolean.TRUE.equals(value) ? ForkJoinPool.commonPool() : null;
+        break;
+
+      case Format.LAZY:
+        lazy = Boolean.TRUE.equals(value);
+        break;
+
+      case Format.METADATA_ONLY:
+        metadataOnly = Boolean.TRUE.equals(value);
+        break;
+
+      case Format.INCREMENTAL:
+        incremental = Boolean.TRUE.equals(value);
+        break;
+
+      case Format.SAVE_INDEX:
+        saveIndex = Boolean.TRUE.equals(value);
+        break;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean isParseSupported() {
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>A ZIP archive is kept open until the book is closed, as the chapters parsed lazily and the
+   * images are read from it afterward.
+   */
+  @Override
+  public Book parse(Path path) throws ParseException {
+    SourceFile.Source source = openSource(path);
+    boolean done = false;
+    try {
+      Book book;
+      if (!metadataOnly && incremental) {
+        book = parseIncrementally(source);
+      } else if (!metadataOnly && lazy) {
+        book = parseLazily(source, saveIndex);
       } else {
-        type = tag.codePointAt(0);
+        BookBuilder builder = new BookBuilder();
+        parseSource(source, builder);
+        book = builder.getBook();
       }
 
-      if (type == '小') {
-        level *= -1;
+      // the chapters and the images are read from the archive after this returns
+      Book.Builder builder = book.toBuilder();
+      builder.addSource(source);
+      book = builder.build();
+
+      done = true;
+      return book;
+    } finally {
+      if (!done) {
+        closeSource(source);
       }
+    }
+  }
 
-      pair.right = new FontSizeStyle(level);
-    } else if (tag.endsWith("見出し")) {
-      switch (tag.codePointAt(tag.length() - 4)) {
-        case '大':
-          pair.right = SimpleStyle.HeadingLarge;
-          break;
+  /**
+   * {@inheritDoc}
+   *
+   * <p>A ZIP archive is closed when this method returns, so the images in it must have been read by
+   * then, which {@link BookSink#endBook()} of a builder does.
+   */
+  @Override
+  public void parse(Path path, BookSink sink) throws ParseException {
+    SourceFile.Source source = openSource(path);
+    try {
+      parseSource(source, sink);
+    } finally {
+      closeSource(source);
+    }
+  }
 
-        case '中':
-          pair.right = SimpleStyle.HeadingMedium;
-          break;
+  /**
+   * @param source the text file to read
+   * @param sink
+   * @throws ParseException
+   */
+  private void parseSource(SourceFile.Source source, BookSink sink) throws ParseException {
+    if (metadataOnly) {
+      parseMetaDataOnly(source, sink);
+      return;
+    } else if (incremental) {
+      try {
+        BookBuilder.replay(parseIncrementally(source), sink);
+      } catch (BuildException e) {
+        throw new ParseException(0, e);
+      }
+      return;
+    }
 
-        case '小':
-          pair.right = SimpleStyle.HeadingSmall;
-          break;
+    Path path = source.path();
+    SourceEncoding encoding = detectEncoding(path);
+    ParseContext context = new ParseContext(path, encoding, sink, new Diagnostics());
+    ForkJoinPool pool = this.pool;
 
-        default:
-          return null;
+    try (LineReader reader =
+        pool == null
+            ? new MappedLineReader(source.open(), encoding.charset, encoding.offset, Long.MAX_VALUE)
+            : new ChunkedLineReader(source.open(), encoding.charset, encoding.offset, pool)) {
+      sink.startBook();
+
+      parseHeader(context, reader);
+      breakChapter(context);
+
+      CharSequence line = parseMainText(context, reader, pool);
+      endChapter(context);
+      if (line == null) {
+        throw new EOFException();
       }
-    } else {
-      switch (tag) {
-        case "太字":
-          pair.right = SimpleStyle.Bold;
-          break;
 
-        case "斜体":
-          pair.right = SimpleStyle.Italic;
-          break;
+      parseAfterText(context, reader);
+    } catch (EOFException e) {
+      // end process
+    } catch (BuildException | IOException | RuntimeException e) {
+      throw new ParseException(context.row, e);
+    } finally {
+      context.diagnostics.report(LOG, path);
+    }
 
-        case "地付き":
-          pair.right = SimpleStyle.AlignEnd;
-          break;
+    try {
+      endChapter(context);
+      sink.endBook();
+    } catch (BuildException e) {
+      throw new ParseException(context.row, e);
+    }
+  }
 
-        case "罫囲み":
-        case "罫囲い":
-          pair.right = SimpleStyle.Ruled;
-          break;
+  /**
+   * Reads the properties of the book without reading the main text, which is skipped by searching
+   * backward from the end of the file for the line ending it.
+   *
+   * @param source
+   * @param sink
+   * @throws ParseException
+   */
+  private static void parseMetaDataOnly(SourceFile.Source source, BookSink sink)
+      throws ParseException {
+    Path path = source.path();
+    SourceEncoding encoding = detectEncoding(path);
+    ParseContext context = new ParseContext(path, encoding, sink, new Diagnostics());
 
-        case "横組み":
-          pair.right = SimpleStyle.Horizontal;
-          break;
+    try (ByteLineReader reader =
+        new ByteLineReader(source.open(), encoding.charset, encoding.offset)) {
+      sink.startBook();
 
-        case "キャプション":
-          pair.right = SimpleStyle.Caption;
-          break;
+      parseHeader(context, reader);
 
-        case "傍点":
-          pair.right = SimpleStyle.Sesame;
-          break;
+      if (reader.seekPastLast(encoding.endOfMainText)) {
+        // the number of lines skipped is unknown
+        context.row = 0;
 
-        case "白ゴマ傍点":
-          pair.right = SimpleStyle.OpenSesame;
-          break;
+        parseAfterText(context, reader);
+      }
+    } catch (EOFException e) {
+      // end process
+    } catch (BuildException | IOException | RuntimeException e) {
+      throw new ParseException(context.row, e);
+    } finally {
+      context.diagnostics.report(LOG, path);
+    }
 
-        case "丸傍点":
-          pair.right = SimpleStyle.Circle;
-          break;
+    try {
+      sink.endBook();
+    } catch (BuildException e) {
+      throw new ParseException(context.row, e);
+    }
+  }
 
-        case "白丸傍点":
-          pair.right = SimpleStyle.CircleOpen;
-          break;
+  /**
+   * Reads the book with the content of each chapter left unparsed until it is accessed. The
+   * problems found in a chapter are reported when it is parsed.
+   *
+   * @param source
+   * @param saveIndex whether to save the chapter index for the next call
+   * @return
+   * @throws ParseException
+   */
+  private static Book parseLazily(SourceFile.Source source, boolean saveIndex)
+      throws ParseException {
+    ChapterIndex index = loadIndex(source, saveIndex);
+    Book.Builder book = newBook(index);
+
+    Diagnostics diagnostics = new Diagnostics();
+    diagnostics.addAll(index.headDiagnostics());
+    diagnostics.addAll(index.tailDiagnostics());
+    diagnostics.report(LOG, source.path());
+
+    for (ChapterIndex.Entry entry : index.entries()) {
+      book.addChapter(new IndexedChapter(source, index.encoding(), entry));
+    }
 
-        case "黒三角傍点":
-          pair.right = SimpleStyle.Triangle;
-          break;
+    return book.build();
+  }
 
-        case "白三角傍点":
-          pair.right = SimpleStyle.TriangleOpen;
-          break;
+  /**
+   * Reads the book, reusing the chapters whose source lines have not changed since the last call,
+   * which are kept in a cache next to the source file.
+   *
+   * @param source
+   * @return
+   * @throws ParseException
+   */
+  private static Book parseIncrementally(SourceFile.Source source) throws ParseException {
+    Path path = source.path();
+    ChapterIndex index = loadIndex(source, true);
+    ChapterCache cache = ChapterCache.load(path);
+    Book.Builder book = newBook(index);
+    Diagnostics diagnostics = new Diagnostics();
+    diagnostics.addAll(index.headDiagnostics());
+
+    try (SourceFile file = source.open()) {
+      ByteBuffer text = file.map(0, file.size());
+
+      for (ChapterIndex.Entry entry : index.entries()) {
+        // breakChapter() closes all the blocks, so every chapter is entered with none open
+        String key = cache.key(text, entry, path, Collections.<String>emptyList());
+
+        Chapter chapter = cache.get(key, entry.row, diagnostics);
+        if (chapter == null) {
+          BookBuilder builder = new BookBuilder();
+          Diagnostics found = new Diagnostics();
+          try {
+            parseChapter(source, index.encoding(), entry, builder, found);
+          } finally {
+            diagnostics.addAll(found);
+          }
 
-        case "二重丸傍点":
-          pair.right = SimpleStyle.DoubleCircleOpen;
-          break;
+          chapter = builder.getBook().chapters().get(0);
+          cache.put(key, entry.row, chapter, found);
+        }
 
-        case "蛇の目傍点":
-          pair.right = SimpleStyle.DoubleCircle;
-          break;
+        book.addChapter(chapter);
+        for (Path resource : chapter.resources()) {
+          book.addResource(resource);
+        }
+      }
 
-        case "ばつ傍点":
-          pair.right = SimpleStyle.Saltire;
-          break;
+      diagnostics.addAll(index.tailDiagnostics());
+    } catch (IOException e) {
+      throw new ParseException(0, e);
+    } finally {
+      diagnostics.report(LOG, path);
+    }
 
-        case "傍線":
-          pair.right = SimpleStyle.Lined;
-          break;
+    try {
+      cache.save(path);
+    } catch (IOException e) {
+      LOG.warn("Failed to save the chapter cache of {}", path, e);
+    }
 
-        case "二重傍線":
-          pair.right = SimpleStyle.DoubleLined;
-          break;
+    return book.build();
+  }
 
-        case "鎖線":
-          pair.right = SimpleStyle.Dotted;
-          break;
+  /**
+   * @param path a text file, or a ZIP archive containing one as Aozora Bunko distributes
+   * @return the source of the text in {@code path}, which must be closed.
+   * @throws ParseException
+   */
+  private static SourceFile.Source openSource(Path path) throws ParseException {
+    try {
+      return SourceFile.openSource(path);
+    } catch (IOException | RuntimeException e) {
+      throw new ParseException(0, e);
+    }
+  }
 
-        case "破線":
-          pair.right = SimpleStyle.Dashed;
-          break;
+  /**
+   * @param source
+   */
+  private static void closeSource(SourceFile.Source source) {
+    try {
+      source.close();
+    } catch (IOException e) {
+      LOG.warn("Failed to close {}", source.path(), e);
+    }
+  }
 
-        case "波線":
-          pair.right = SimpleStyle.WaveDashed;
-          break;
+  /**
+   * @param path
+   * @return the encoding {@code path} is written in.
+   * @throws ParseException
+   */
+  private static SourceEncoding detectEncoding(Path path) throws ParseException {
+    try {
+      return SourceEncoding.detect(path);
+    } catch (IOException e) {
+      throw new ParseException(0, e);
+    }
+  }
 
-        case "縦中横":
-          pair.right = SimpleStyle.Rotated;
-          break;
+  /**
+   * @param source
+   * @param save whether to save the index next to the source if not up to date
+   * @return the chapter index of the source.
+   * @throws ParseException
+   */
+  private static ChapterIndex loadIndex(SourceFile.Source source, boolean save)
+      throws ParseException {
+    Path path = source.path();
+    ChapterIndex index = ChapterIndex.load(source);
+    if (index == null) {
+      index = index(source);
+      if (!save) {
+        return index;
+      }
 
-        case "行右小書き":
-        case "上付き小文字":
-          pair.right = SimpleStyle.Superscript;
-          break;
+      try {
+        index.save(path);
+      } catch (IOException e) {
+        LOG.warn("Failed to save the chapter index of {}", path, e);
+      }
+    }
 
-        case "行左小書き":
-        case "下付き小文字":
-          pair.right = SimpleStyle.Subscript;
-          break;
+    return index;
+  }
 
-        case "割り注":
-          pair.right = SimpleStyle.Warichu;
-          break;
+  /**
+   * @param index
+   * @return a builder of a book with the properties in {@code index} and no chapters.
+   */
+  private static Book.Builder newBook(ChapterIndex index) {
+    Book.Builder book = new Book.Builder();
+    for (Map.Entry<BookProperty, String> property : index.properties().entrySet()) {
+      book.setProperty(property.getKey(), property.getValue());
+    }
+
+    return book;
+  }
+
+  /**
+   * Scans the source for the properties of the book and the boundaries of chapters, without
+   * interpreting the main text.
+   *
+   * @param source
+   * @return
+   * @throws ParseException
+   */
+  private static ChapterIndex index(SourceFile.Source source) throws ParseException {
+    Path path = source.path();
+    SourceEncoding encoding = detectEncoding(path);
+    BookBuilder builder = new BookBuilder();
+    ParseContext context = new ParseContext(path, encoding, builder, new Diagnostics());
+
+    ChapterIndex index;
+    try {
+      index = new ChapterIndex(source, encoding);
+    } catch (IOException e) {
+      throw new ParseException(0, e);
+    }
+
+    try (ByteLineReader reader =
+        new ByteLineReader(source.open(), encoding.charset, encoding.offset)) {
+      parseHeader(context, reader);
+      boolean afterText = scanMainText(context, reader, index);
+
+      // the problems in the chapters are found when they are parsed
+      index.headDiagnostics().addAll(context.diagnostics);
+      context.diagnostics.clear();
+
+      if (afterText) {
+        parseAfterText(context, reader);
+      }
+    } catch (EOFException e) {
+      // end process
+    } catch (BuildException | IOException | RuntimeException e) {
+      throw new ParseException(context.row, e);
+    }
+
+    index.tailDiagnostics().addAll(context.diagnostics);
+
+    Book book = builder.getBook();
+    for (BookProperty key : BookProperty.values()) {
+      if (book.hasProperty(key)) {
+        index.setProperty(key, book.getProperty(key));
+      }
+    }
+
+    return index;
+  }
+
+  /**
+   * Parses a single chapter found by {@link #index(SourceFile.Source)}.
+   *
+   * @param source
+   * @param encoding
+   * @param entry
+   * @param sink
+   * @throws ParseException
+   */
+  static void parseChapter(
+      SourceFile.Source source, SourceEncoding encoding, ChapterIndex.Entry entry, BookSink sink)
+      throws ParseException {
+    Diagnostics diagnostics = new Diagnostics();
+    try {
+      parseChapter(source, encoding, entry, sink, diagnostics);
+    } finally {
+      diagnostics.report(LOG, source.path());
+    }
+  }
+
+  /**
+   * @param source
+   * @param encoding
+   * @param entry
+   * @param sink
+   * @param diagnostics the problems found in the book so far, to add those of the chapter to
+   * @throws ParseException
+   */
+  private static void parseChapter(
+      SourceFile.Source source,
+      SourceEncoding encoding,
+      ChapterIndex.Entry entry,
+      BookSink sink,
+      Diagnostics diagnostics)
+      throws ParseException {
+    ParseContext context = new ParseContext(source.path(), encoding, sink, diagnostics);
+    context.row = entry.row;
+
+    try (LineReader reader =
+        new MappedLineReader(source.open(), encoding.charset, entry.start, entry.end)) {
+      breakChapter(context);
+      parseMainText(context, reader, null);
+      endChapter(context);
+    } catch (BuildException | IOException | RuntimeException e) {
+      throw new ParseException(context.row, e);
+    }
+  }
+
+  private static void breakChapter(ParseContext context) throws BuildException {
+    endChapter(context);
 
-        case "ゴシック体":
-          pair.right = SimpleStyle.Gothic;
+    context.sink.startChapter();
+    context.inChapter = true;
+  }
+
+  /**
+   * Closes the blocks left open and the chapter, if any.
+   *
+   * @param context
+   * @throws BuildException
+   */
+  private static void endChapter(ParseContext context) throws BuildException {
+    if (!context.inChapter) {
+      return;
+    }
+
+    for (int i = context.blockTypeStack.size(); i > 0; --i) {
+      context.sink.endBlock();
+    }
+    context.blockTypeStack.clear();
+
+    context.sink.endChapter();
+    context.inChapter = false;
+  }
+
+  private static void enterBlock(ParseContext context, String tag)
+      throws BuildException, ParseException {
+    TagStyle tagStyle = mapToStyle(tag, context.diagnostics, context.row);
+    if (tagStyle.style == null) {
+      context.diagnostics.add(Diagnostics.Kind.UNKNOWN_BLOCK_TAG, tag, context.row);
+      // throw new ParseException(context.row, "Unknown block tag: " + tag);
+    }
+
+    if (tagStyle.type.equals("字下げ")
+        && !context.blockTypeStack.isEmpty()
+        && context.blockTypeStack.peek().equals("字下げ")) {
+      leaveBlock(context, "字下げ");
+    }
+
+    context.blockTypeStack.push(tagStyle.type);
+    context.sink.startBlock(Collections.singleton(tagStyle.style));
+  }
+
+  private static void leaveBlock(ParseContext context, String tag)
+      throws BuildException, ParseException {
+    if (!context.blockTypeStack.peek().equals(tag)) {
+      throw new ParseException(context.row, "Unmatched block: " + tag);
+    }
+
+    if (tag.equals("字下げ")) {
+      Iterator<String> blockTypes = context.blockTypeStack.iterator();
+
+      while (blockTypes.hasNext()) {
+        if (!blockTypes.next().equals("字下げ")) {
           break;
+        }
 
-        default:
-          return null;
+        blockTypes.remove();
+        context.sink.endBlock();
       }
+    } else {
+      context.blockTypeStack.pop();
+      context.sink.endBlock();
     }
+  }
+
+  private static final Pattern IMAGE_PATTERN =
+      Pattern.compile("(.*?)（(.+?)(、横(\\d+)×縦(\\d+))?(、.+?)*）(入る)?");
 
-    if (left) {
-      pair.left = "左に" + pair.left;
+  /**
+   * @param segment
+   * @return true if the segment is a tag not interpreted yet.
+   */
+  private static boolean isTag(Segment segment) {
+    return segment instanceof Token && ((Token) segment).getType() == TokenType.TAG;
+  }
+
+  /**
+   * @param segments
+   * @return the segment spanning all of the segments, or {@code null} if they are empty.
+   */
+  private static Segment toSegment(List<Segment> segments) {
+    List<Segment> nonEmpty = new ArrayList<>(segments.size());
+    for (Segment segment : segments) {
+      if (segment != null && segment.length() > 0) {
+        nonEmpty.add(segment);
+      }
     }
 
-    return pair;
+    switch (nonEmpty.size()) {
+      case 0:
+        return null;
+
+      case 1:
+        return nonEmpty.get(0);
+
+      default:
+        return new Fragment(nonEmpty);
+    }
   }
 
-  private Path sourcePath = null;
+  /**
+   * @param segments
+   * @return the segment spanning all of the segments, or an empty fragment.
+   */
+  private static Segment toText(List<Segment> segments) {
+    for (Segment segment : segments) {
+      if (segment instanceof Token) {
+        // markup left inside the text can never be interpreted
+        throw new IllegalArgumentException("unexpected markup: " + segment);
+      }
+    }
+
+    Segment text = toSegment(segments);
+    if (text == null) {
+      return new Fragment(Collections.emptyList());
+    }
+
+    return text;
+  }
 
-  private Book book = null;
+  /**
+   * @param segments
+   * @return true if the line is marker-only.
+   */
+  private static boolean processMarker(List<Segment> segments) {
+    for (int i = segments.size() - 1; i >= 0; --i) {
+      if (!isTag(segments.get(i))) {
+        continue;
+      }
 
-  private Chapter chapter = null;
+      String tag = ((Token) segments.get(i)).getValue();
+      switch (tag) {
+        case "改行":
+          segments.set(i, SimpleMarker.LineBreak);
+          continue;
 
-  private int row;
+        case "ページの左右中央":
+          return true;
+      }
 
-  private Deque<String> blockTypeStack = new LinkedList<>();
+      Style style = null;
+      String text = null;
+
+      int count = tag.codePointCount(0, tag.length());
+      if (count == 1 || count == 2 && tag.charAt(tag.length() - 1) == 'レ') {
+        style = SimpleStyle.Kunten;
+        text = tag;
+      } else if (tag.length() > 2 && tag.charAt(0) == '（' && tag.charAt(tag.length() - 1) == '）') {
+        text = tag.substring(1, tag.length() - 1);
+        if (text.indexOf('.') == -1) {
+          style = SimpleStyle.Okurigana;
+        }
+      }
 
-  private Deque<Block> blockStack = new LinkedList<>();
+      if (style != null) {
+        segments.set(i, new StyledSegment(new TextSegment(text), StyleSet.of(style)));
+      }
+    }
 
-  /** {@inheritDoc} */
-  @Override
-  public boolean isParseSupported() {
-    return true;
+    return false;
   }
 
-  /** {@inheritDoc} */
-  @Override
-  public Book parse(final Path path) throws ParseException {
-    synchronized (this) {
-      if (sourcePath == null) {
-        sourcePath = path;
+  /**
+   * @param segments
+   */
+  private static void processImage(ParseContext context, List<Segment> segments, ParsedLine line) {
+    for (int i = segments.size() - 1; i >= 0; --i) {
+      if (!isTag(segments.get(i))) {
+        continue;
+      }
+
+      String tag = ((Token) segments.get(i)).getValue();
+      if (tag.indexOf('）') == -1) {
+        continue;
+      }
+
+      Matcher matcher = IMAGE_PATTERN.matcher(line.guard(tag));
+      if (!matcher.matches()) {
+        continue;
+      }
+
+      String fileName = matcher.group(2);
+      Path path = context.sourcePath.resolveSibling(fileName).toAbsolutePath();
+      line.resources.add(path);
+
+      String caption = matcher.group(1);
+      if (caption != null && !caption.isEmpty()) {
+        if (caption.codePointAt(0) == '「') {
+          int index = caption.indexOf('」', 1);
+          if (index != -1) {
+            caption = caption.substring(1, index);
+          }
+        }
       } else {
-        throw new ParseException(0, "already parsing");
+        caption = null;
       }
+
+      int width = -1;
+      int height = -1;
+      String widthText = matcher.group(4);
+      String heightText = matcher.group(5);
+      if (widthText != null
+          && !widthText.isEmpty()
+          && heightText != null
+          && !heightText.isEmpty()) {
+        width = Integer.parseInt(widthText);
+        height = Integer.parseInt(heightText);
+      }
+
+      segments.set(i, new ImageMarker(path, caption, width, height));
     }
+  }
 
-    book = new Book();
-    row = 0;
+  /**
+   * Replaces each ruby and the text it annotates with a {@link RubySegment}.
+   *
+   * <p>The rubies are resolved from right to left so that the text before each of them is read as
+   * written, and the line is rebuilt from the right as they are, so no replacement shifts the rest
+   * of the line.
+   *
+   * @param segments
+   */
+  private static void processRuby(List<Segment> segments) {
+    // pair each ruby with the bar preceding it, from left to right
+    List<int[]> rubies = new ArrayList<>();
+    BitSet pairedBars = new BitSet();
+    int bar = -1;
+    for (int i = 0, l = segments.size(); i < l; ++i) {
+      Segment segment = segments.get(i);
+      if (!(segment instanceof Token)) {
+        continue;
+      }
 
-    try (BufferedReader reader = Files.newBufferedReader(path, CHARSET)) {
-      String line = parseMetaData(reader);
-      if (line == null) {
-        throw new EOFException();
+      switch (((Token) segment).getType()) {
+        case BAR:
+          if (bar == -1) {
+            bar = i;
+          }
+          break;
+
+        case RUBY:
+          if (bar == i - 1) {
+            bar = -1;
+          } else if (bar != -1) {
+            pairedBars.set(bar);
+          }
+          rubies.add(new int[] {bar, i});
+          bar = -1;
+          break;
+
+        default:
+          break;
       }
+    }
 
-      reader.mark(0);
-      line = reader.readLine();
-      if (line == null) {
-        throw new EOFException();
-      } else {
-        reader.reset();
+    // bars not followed by ruby text are literal
+    for (int i = 0, l = segments.size(); i < l; ++i) {
+      Segment segment = segments.get(i);
+      if (segment instanceof Token
+          && ((Token) segment).getType() == TokenType.BAR
+          && !pairedBars.get(i)) {
+        segments.set(i, new TextSegment(segment.toString()));
       }
+    }
+
+    if (rubies.isEmpty()) {
+      return;
+    }
+
+    // the segments following the rubies resolved so far, in reverse order
+    List<Segment> reversed = new ArrayList<>(segments.size());
+    int done = segments.size();
+
+    for (int r = rubies.size() - 1; r >= 0; --r) {
+      int rangeStart = rubies.get(r)[0];
+      int rubyIndex = rubies.get(r)[1];
+      String ruby = ((Token) segments.get(rubyIndex)).getValue();
+
+      for (int i = done - 1; i > rubyIndex; --i) {
+        reversed.add(segments.get(i));
+      }
+
+      List<Segment> text;
+      Segment front = null;
+      if (rangeStart != -1) {
+        text = segments.subList(rangeStart + 1, rubyIndex);
+      } else {
+        rangeStart = rubyIndex;
+        while (rangeStart > 0 && !(segments.get(rangeStart - 1) instanceof Token)) {
+          --rangeStart;
+        }
 
-      if (LEGEND_MARK_PATTERN.matcher(line).matches()) {
-        reader.readLine();
-        ++row;
+        // the markup before the text stops the scan as it did when it was left in the text
+        StringBuilder builder = new StringBuilder();
+        int boundary = 0;
+        if (rangeStart > 0) {
+          String markup = segments.get(rangeStart - 1).toString();
+          builder.append(markup.charAt(markup.length() - 1));
+          boundary = 1;
+        }
 
-        while ((line = reader.readLine()) != null) {
-          ++row;
+        CharAppender appender = new CharAppender(builder);
+        for (int i = rangeStart; i < rubyIndex; ++i) {
+          appender.walk(segments.get(i));
+        }
 
-          if (LEGEND_MARK_PATTERN.matcher(line).matches()) {
+        int textStart = Math.max(findRubyText(builder) - boundary, 0);
+
+        // skip the segments before the text, splitting the one containing its start
+        Segment back = null;
+        for (int offset = 0; rangeStart < rubyIndex; ++rangeStart) {
+          Segment segment = segments.get(rangeStart);
+          int length = segment.length();
+          if (textStart < offset + length) {
+            if (textStart > offset) {
+              front = segment.subSequence(0, textStart - offset);
+              back = segment.subSequence(textStart - offset, length);
+            }
             break;
           }
+
+          offset += length;
         }
 
-        reader.readLine();
-        ++row;
+        if (back == null) {
+          text = segments.subList(rangeStart, rubyIndex);
+        } else {
+          text = new ArrayList<>(rubyIndex - rangeStart);
+          text.add(back);
+          text.addAll(segments.subList(rangeStart + 1, rubyIndex));
+        }
       }
 
-      breakChapter();
-
-      line = parseMainText(reader);
-      if (line == null) {
-        throw new EOFException();
+      reversed.add(new RubySegment(toText(text), ruby));
+      if (front != null) {
+        reversed.add(front);
       }
 
-      parseAfterText(reader);
-    } catch (EOFException e) {
-      // end process
-    } catch (IOException | RuntimeException e) {
-      throw new ParseException(row, e);
+      done = rangeStart;
+    }
+
+    for (int i = done - 1; i >= 0; --i) {
+      reversed.add(segments.get(i));
     }
 
-    synchronized (this) {
-      Book parsedBook = book;
+    segments.clear();
+    for (int i = reversed.size() - 1; i >= 0; --i) {
+      segments.add(reversed.get(i));
+    }
+  }
+
+  /**
+   * Appends the characters of segments, walking down to their leaves rather than looking up each
+   * character by {@link Segment#charAt(int)}.
+   */
+  private static final class CharAppender extends DocumentWalker<RuntimeException> {
+
+    private final StringBuilder builder;
+
+    /**
+     * @param builder
+     */
+    CharAppender(StringBuilder builder) {
+      this.builder = builder;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void text(TextSegment segment) {
+      segment.toString(builder);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void image(ImageMarker marker) {
+      other(marker);
+    }
 
-      book = null;
-      chapter = null;
-      blockTypeStack.clear();
-      blockStack.clear();
-      sourcePath = null;
+    /** {@inheritDoc} */
+    @Override
+    protected void marker(SimpleMarker marker) {
+      other(marker);
+    }
 
-      return parsedBook;
+    /** {@inheritDoc} */
+    @Override
+    protected void other(Segment segment) {
+      for (int i = 0, l = segment.length(); i < l; ++i) {
+        builder.append(segment.charAt(i));
+      }
     }
   }
 
-  private void breakChapter() {
-    blockTypeStack.clear();
-    blockStack.clear();
+  /**
+   * Scans backward from the end of {@code text} for the run of characters of the same kind.
+   *
+   * @param text
+   * @return the start index of the run
+   */
+  private static int findRubyText(StringBuilder text) {
+    int textStart = text.length() - 1;
+    // not CharClass.NONE, which is the class of the characters in no block
+    int endType = -1;
+
+    for (; textStart >= 0; --textStart) {
+      char c = text.charAt(textStart);
+      while (textStart > 0) {
+        if (c != '々' && c != 'ヶ') {
+          break;
+        }
 
-    chapter = book.addChapter(new Chapter());
-    blockStack.add(chapter.getRoot());
-  }
+        c = text.charAt(--textStart);
+      }
 
-  private void enterBlock(String tag) throws ParseException {
-    MutablePair<String, Style> pair = mapToStyle(tag);
-    if (pair == null) {
-      pair = MutablePair.of(tag, null);
-      LOG.warn("Unknown block tag: {}", tag);
-      // throw new ParseException(row, "Unknown block tag: " + tag);
-    }
+      int type = CharClass.of(c);
 
-    if (pair.left.equals("字下げ")
-        && !blockTypeStack.isEmpty()
-        && blockTypeStack.peek().equals("字下げ")) {
-      leaveBlock("字下げ");
+      if (endType == -1) {
+        endType = type;
+      } else if (type != endType) {
+        ++textStart;
+        break;
+      }
+    }
+    if (textStart < 0) {
+      textStart = 0;
     }
 
-    Block block = new Block();
-    block.addStyle(pair.right);
-
-    blockTypeStack.push(pair.left);
-    blockStack.peek().addElement(block);
-    blockStack.push(block);
+    return textStart;
   }
 
-  private void leaveBlock(String tag) throws ParseException {
-    if (!blockTypeStack.peek().equals(tag)) {
-      throw new ParseException(row, "Unmatched block: " + tag);
-    }
+  /**
+   * Replaces each range between {@code ［＃ルビ付き］} and {@code ［＃「…」のルビ付き終わり］}, or their variants, with
+   * a {@link RubySegment}.
+   *
+   * <p>The segments are moved to a new list as the line is scanned, and an end tag missing from the
+   * rest of the line is not searched for again, so the line is scanned only once however many
+   * ranges it has.
+   *
+   * @param segments
+   */
+  private static void processRubyArea(List<Segment> segments) {
+    List<Segment> resolved = new ArrayList<>(segments.size());
+    Set<String> missing = new HashSet<>();
+
+    for (int i = 0, l = segments.size(); i < l; ++i) {
+      Segment segment = segments.get(i);
+      resolved.add(segment);
+      if (!isTag(segment)) {
+        continue;
+      }
 
-    if (tag.equals("字下げ")) {
-      Iterator<String> blockTypes = blockTypeStack.iterator();
-      Iterator<Block> blocks = blockStack.iterator();
+      String tag = ((Token) segment).getValue();
+      String prefix = tag.startsWith("左に") ? "左に" : "";
+      String type = tag.substring(prefix.length());
+      if (!type.equals("ルビ付き") && !type.equals("注記付き")) {
+        continue;
+      }
 
-      while (blockTypes.hasNext() && blocks.hasNext()) {
-        String blockType = blockTypes.next();
-        blocks.next();
+      String suffix = "」の" + type + "終わり";
+      if (missing.contains(prefix + suffix)) {
+        continue;
+      }
 
-        if (!blockType.equals("字下げ")) {
+      for (int j = i + 1; ; ++j) {
+        if (j == l) {
+          missing.add(prefix + suffix);
           break;
         }
 
-        blockTypes.remove();
-        blocks.remove();
+        if (!isTag(segments.get(j))) {
+          continue;
+        }
+
+        String end = ((Token) segments.get(j)).getValue();
+        if (end.length() > prefix.length() + suffix.length() + 1
+            && end.startsWith(prefix + "「")
+            && end.endsWith(suffix)) {
+          String ruby = end.substring(prefix.length() + 1, end.length() - suffix.length());
+          Segment text = toText(segments.subList(i + 1, j));
+
+          resolved.set(resolved.size() - 1, new RubySegment(text, ruby));
+          i = j;
+          break;
+        }
       }
-    } else {
-      blockTypeStack.pop();
-      blockStack.pop();
     }
-  }
 
-  private static final Pattern ACCENT_PATTERN = Pattern.compile("〔(.+?)〕");
+    segments.clear();
+    segments.addAll(resolved);
+  }
 
   /**
-   * @param input
-   * @return
+   * Resolves annotations referring to the preceding text, such as {@code ［＃「X」に傍点］}.
+   *
+   * <p>The segments are moved to a new list one by one, so an annotation only needs to match its
+   * target against the tail of that list, and replacing the match never shifts the rest of the
+   * line.
+   *
+   * @param segments
+   * @throws ParseException
    */
-  private StringBuilder processAccent(StringBuilder input) {
-    List<MatchResult> results = Util.findAll(ACCENT_PATTERN, input, true);
+  private static void processAnnotation(List<Segment> segments, ParsedLine line) {
+    List<Segment> resolved = new ArrayList<>(segments.size());
 
-    for (MatchResult result : results) {
-      String original = result.group(1);
-      String replaced = AozoraAccentMap.replaceAll(original);
-      if (!replaced.equals(original)) {
-        input.replace(result.start(), result.end(), replaced);
+    for (Segment current : segments) {
+      if (!isTag(current) || !resolveAnnotation(resolved, ((Token) current).getValue(), line)) {
+        resolved.add(current);
       }
     }
 
-    return input;
+    segments.clear();
+    segments.addAll(resolved);
   }
 
-  private static final Pattern CHAR_REFERENCE_PATTERN =
-      Pattern.compile("※［＃(.+?)、(?:.*?(\\d+)-(\\d+)-(\\d+)|(U\\+([0-9A-Fa-f]{4,6}))?.*)］");
-
   /**
-   * @param input
-   * @return
-   * @throws ParseException
+   * @param segments the segments preceding the annotation
+   * @param tag
+   * @return true if the annotation was resolved, or discarded.
    */
-  private StringBuilder processCharReference(StringBuilder input) throws ParseException {
-    List<MatchResult> results = Util.findAll(CHAR_REFERENCE_PATTERN, input, true);
+  private static boolean resolveAnnotation(List<Segment> segments, String tag, ParsedLine line) {
+    if (tag.isEmpty() || tag.charAt(0) != '「') {
+      return false;
+    }
 
-    for (MatchResult result : results) {
-      try {
-        String replacement;
+    // the longest target matching the preceding text wins
+    for (int close = tag.lastIndexOf('」'); close > 1; close = tag.lastIndexOf('」', close - 1)) {
+      String annotation = tag.substring(close + 1);
+      if (annotation.startsWith("の左")) {
+        annotation = annotation.substring(2);
+      }
+      if (annotation.length() < 2 || annotation.charAt(0) != 'に' && annotation.charAt(0) != 'は') {
+        continue;
+      }
+      annotation = annotation.substring(1);
+
+      int start = matchBackward(segments, segments.size(), tag.substring(1, close));
+      if (start == -1) {
+        continue;
+      }
+
+      List<Segment> range = segments.subList(start, segments.size());
+      Segment text = toText(range);
+      range.clear();
 
-        if (result.group(2) != null) {
-          int plane = Integer.parseInt(result.group(2));
-          int row = Integer.parseInt(result.group(3));
-          int cell = Integer.parseInt(result.group(4));
+      String ruby = null;
+      if (annotation.length() > 5
+          && annotation.charAt(0) == '「'
+          && (annotation.endsWith("」のルビ") || annotation.endsWith("」の注記"))) {
+        ruby = annotation.substring(1, annotation.length() - 4);
+      }
 
-          replacement = decodeChar(plane, row, cell);
-        } else if (result.group(5) != null) {
-          int codePoint = Integer.parseInt(result.group(6), 16);
-          replacement = String.valueOf(Character.toChars(codePoint));
+      if (ruby != null) {
+        segments.add(new RubySegment(text, ruby));
+      } else {
+        TagStyle tagStyle = mapToStyle(annotation, line.diagnostics, line.row);
+        if (tagStyle.style != null) {
+          segments.add(new StyledSegment(text, StyleSet.of(tagStyle.style)));
         } else {
-          replacement = "※" + result.group(1);
+          line.diagnostics.add(Diagnostics.Kind.DISCARDED_ANNOTATION, annotation, line.row);
         }
-
-        input.replace(result.start(), result.end(), replacement);
-      } catch (CharacterCodingException e) {
-        throw new ParseException(row, e);
       }
+
+      return true;
     }
 
-    return input;
+    return false;
   }
 
   /**
-   * @param fragment
-   * @return true if the fragment is marker-only.
+   * Matches {@code target} against the text just before {@code end}, splitting the segment
+   * containing the start of the match if necessary.
+   *
+   * @param segments
+   * @param end
+   * @param target
+   * @return the index of the first segment of the match, or -1 if not matched.
    */
-  private boolean processMarker(Fragment fragment) {
-    List<MatchResult> results = Util.findAll(TAG_PATTERN, fragment, true);
+  private static int matchBackward(List<Segment> segments, int end, String target) {
+    int remaining = target.length();
+    int index = end;
 
-    for (MatchResult result : results) {
-      switch (result.group(1)) {
-        case "改行":
-          fragment.replace(result.start(), result.end(), SimpleMarker.LineBreak);
-          break;
+    while (remaining > 0) {
+      if (--index < 0) {
+        return -1;
+      }
 
-        case "ページの左右中央":
-          chapter.getRoot().addStyle(SimpleStyle.PageCenter);
-          return true;
+      Segment segment = segments.get(index);
+      if (segment instanceof Token) {
+        return -1;
+      }
+
+      int length = segment.length();
+      for (int i = length - 1; i >= 0 && remaining > 0; --i) {
+        if (segment.charAt(i) != target.charAt(--remaining)) {
+          return -1;
+        }
+
+        if (remaining == 0 && i > 0) {
+          segments.set(index, segment.subSequence(0, i));
+          segments.add(++index, segment.subSequence(i, length));
+        }
       }
     }
 
-    return false;
+    return index;
   }
 
-  private static final Pattern KUNTEN_PATTERN = Pattern.compile("［＃(.レ?)］");
-
   /**
-   * @param fragment
+   * @param segment
+   * @param token
+   * @return true if {@code segment} is or contains {@code token}.
    */
-  private void processKunten(Fragment fragment) {
-    List<MatchResult> results = Util.findAll(KUNTEN_PATTERN, fragment, true);
+  private static boolean contains(Segment segment, Token token) {
+    if (segment == token) {
+      return true;
+    }
 
-    for (MatchResult result : results) {
-      Segment segment = fragment.subSequence(result.start(1), result.end(1));
-      StyledSegment styledSegment = new StyledSegment(segment);
-      styledSegment.addStyle(SimpleStyle.Kunten);
+    if (segment instanceof StyledSegment) {
+      return contains(((StyledSegment) segment).getSegment(), token);
+    }
 
-      fragment.replace(result.start(), result.end(), styledSegment);
+    if (segment instanceof Fragment) {
+      for (Segment child : (Fragment) segment) {
+        if (contains(child, token)) {
+          return true;
+        }
+      }
     }
-  }
 
-  private static final Pattern OKURIGANA_PATTERN = Pattern.compile("［＃（(.+?)）］");
+    return false;
+  }
 
   /**
-   * @param fragment
+   * Splits {@code segment} at {@code token}, dropping the token.
+   *
+   * @param segment
+   * @param token
+   * @return the segments before and after the token, {@code null} if empty.
    */
-  private void processOkurigana(Fragment fragment) {
-    List<MatchResult> results = Util.findAll(OKURIGANA_PATTERN, fragment, true);
+  private static Segment[] split(Segment segment, Token token) {
+    if (segment == token) {
+      return new Segment[2];
+    }
 
-    for (MatchResult result : results) {
-      String text = result.group(1);
-      if (text.indexOf('.') != -1) {
-        continue;
+    if (segment instanceof StyledSegment) {
+      StyledSegment styledSegment = (StyledSegment) segment;
+      Segment[] parts = split(styledSegment.getSegment(), token);
+
+      for (int i = 0; i < parts.length; ++i) {
+        if (parts[i] != null) {
+          parts[i] = new StyledSegment(parts[i], styledSegment.styles());
+        }
       }
 
-      Segment segment = fragment.subSequence(result.start(1), result.end(1));
-      StyledSegment styledSegment = new StyledSegment(segment);
-      styledSegment.addStyle(SimpleStyle.Okurigana);
+      return parts;
+    }
+
+    List<Segment> front = new ArrayList<>();
+    List<Segment> back = new ArrayList<>();
+    List<Segment> current = front;
 
-      fragment.replace(result.start(), result.end(), styledSegment);
+    for (Segment child : (Fragment) segment) {
+      if (current == front && contains(child, token)) {
+        Segment[] parts = split(child, token);
+        front.add(parts[0]);
+        back.add(parts[1]);
+        current = back;
+      } else {
+        current.add(child);
+      }
     }
-  }
 
-  private static final Pattern IMAGE_PATTERN =
-      Pattern.compile("［＃(.*?)（(.+?)(、横(\\d+)×縦(\\d+))?(、.+?)*）(入る)?］");
+    return new Segment[] {toSegment(front), toSegment(back)};
+  }
 
   /**
-   * @param fragment
+   * Removes {@code token} from {@code segments}, splitting the segment containing it.
+   *
+   * @param segments
+   * @param token
+   * @return the index where the token was.
    */
-  private void processImage(Fragment fragment) {
-    List<MatchResult> results = Util.findAll(IMAGE_PATTERN, fragment, true);
-
-    for (MatchResult result : results) {
-      String fileName = result.group(2);
-      Path path = sourcePath.resolveSibling(fileName).toAbsolutePath();
-      book.loadResource(path);
+  private static int remove(List<Segment> segments, Token token) {
+    for (int i = 0; ; ++i) {
+      Segment segment = segments.get(i);
+      if (!contains(segment, token)) {
+        continue;
+      }
 
-      ImageMarker image = new ImageMarker(path);
+      segments.remove(i);
 
-      String caption = result.group(1);
-      if (caption != null && !caption.isEmpty()) {
-        if (caption.codePointAt(0) == '「') {
-          int index = caption.indexOf('」', 1);
-          if (index != -1) {
-            caption = caption.substring(1, index);
-          }
+      Segment[] parts = split(segment, token);
+      int index = i;
+      for (Segment part : parts) {
+        if (part != null && part.length() > 0) {
+          segments.add(index++, part);
         }
-
-        image.setCaption(caption);
       }
 
-      String width = result.group(4);
-      String height = result.group(5);
-      if (width != null && !width.isEmpty() && height != null && !height.isEmpty()) {
-        image.setWidth(Integer.parseInt(width));
-        image.setHeight(Integer.parseInt(height));
-      }
-
-      fragment.replace(result.start(), result.end(), image);
+      return i;
     }
   }
 
-  private static final Pattern RUBY_PATTERN = Pattern.compile("(｜(.+?))?《(.+?)》");
-
-  private static final Pattern RUBY_AREA_PATTERN =
-      Pattern.compile("［＃((?:左に)?)((?:ルビ|注記)付き)］(.*?)［＃\\1「(.+?)」の\\2終わり］");
-
   /**
-   * @param fragment
+   * Removes {@code tokens} from {@code segments} as {@link #remove(List, Token)} does for each of
+   * them in order, visiting each segment only once.
+   *
+   * @param segments
+   * @param tokens
    */
-  private void processRuby(Fragment fragment) {
-    final String special = "々ヶ";
-
-    List<MatchResult> results = Util.findAll(RUBY_PATTERN, fragment, true);
-    for (MatchResult result : results) {
-      int rangeStart = result.start();
-      int textStart = result.start(2), textEnd = result.end(2);
+  private static void removeAll(List<Segment> segments, List<Token> tokens) {
+    final Map<Token, Integer> order = new IdentityHashMap<>();
+    for (int i = 0; i < tokens.size(); ++i) {
+      order.put(tokens.get(i), i);
+    }
 
-      if (textStart == -1) {
-        textEnd = result.start(3) - 1;
-        textStart = textEnd - 1;
-        UnicodeBlock endType = null;
+    List<Segment> result = new ArrayList<>(segments.size() + tokens.size());
+    List<Token> found = new ArrayList<>();
+    for (Segment segment : segments) {
+      findTokens(segment, order, found);
+      if (found.isEmpty()) {
+        result.add(segment);
+        continue;
+      }
 
-        for (; textStart >= 0; --textStart) {
-          char c = fragment.charAt(textStart);
-          while (textStart > 0) {
-            if (special.indexOf(c) == -1) {
-              break;
+      Collections.sort(
+          found,
+          new Comparator<Token>() {
+            @Override
+            public int compare(Token o1, Token o2) {
+              return order.get(o1).compareTo(order.get(o2));
             }
+          });
 
-            c = fragment.charAt(--textStart);
-          }
-
-          UnicodeBlock type = UnicodeBlock.of(c);
-
-          if (endType == null) {
-            endType = type;
-          } else if (!type.equals(endType)) {
-            ++textStart;
-            break;
-          }
-        }
-        if (textStart < 0) {
-          textStart = 0;
-        }
-
-        rangeStart = textStart;
+      // removing a token only splits the segment containing it
+      List<Segment> parts = new ArrayList<>();
+      parts.add(segment);
+      for (Token token : found) {
+        remove(parts, token);
       }
 
-      Segment text = fragment.subSequence(textStart, textEnd);
-      RubySegment segment = new RubySegment(text, result.group(3));
-      fragment.replace(rangeStart, result.end(), segment);
+      result.addAll(parts);
+      found.clear();
     }
 
-    results = Util.findAll(RUBY_AREA_PATTERN, fragment, true);
-    for (MatchResult result : results) {
-      Segment text = fragment.subSequence(result.start(3), result.end(3));
-      RubySegment segment = new RubySegment(text, result.group(4));
-      fragment.replace(result.start(), result.end(), segment);
-    }
+    segments.clear();
+    segments.addAll(result);
   }
 
-  private static final Pattern ANNOTATION_PATTERN =
-      Pattern.compile("(.+)［＃「\\1」(?:(?:の左)?[には])(「(.+?)」の(ルビ|注記)|.+?)］");
-
   /**
-   * @param fragment
-   * @throws ParseException
+   * @param segment
+   * @param tokens
+   * @param found the list to add the tokens in {@code tokens} contained in {@code segment} to
    */
-  private void processAnnotation(Fragment fragment) throws ParseException {
-    Matcher matcher = ANNOTATION_PATTERN.matcher(fragment);
-    while (matcher.find(0)) {
-      Segment text = fragment.subSequence(matcher.start(1), matcher.end(1));
-
-      Segment segment = null;
-      if (matcher.start(3) != -1) {
-        segment = new RubySegment(text, matcher.group(3));
-      } else {
-        String annotation = matcher.group(2);
-        MutablePair<String, Style> pair = mapToStyle(annotation);
-        if (pair != null) {
-          segment = new StyledSegment(text);
-          ((StyledSegment) segment).addStyle(pair.right);
-        } else {
-          LOG.warn("discarding annotation {} on line {}", annotation, row);
-        }
+  private static void findTokens(Segment segment, Map<Token, Integer> tokens, List<Token> found) {
+    if (segment instanceof Token) {
+      if (tokens.containsKey(segment)) {
+        found.add((Token) segment);
+      }
+    } else if (segment instanceof StyledSegment) {
+      findTokens(((StyledSegment) segment).getSegment(), tokens, found);
+    } else if (segment instanceof Fragment) {
+      for (Segment child : (Fragment) segment) {
+        findTokens(child, tokens, found);
       }
-
-      fragment.replace(matcher.start(), matcher.end(), segment);
     }
   }
 
   /**
-   * @param fragment
+   * @param segment
+   * @param styleStack
+   * @param tagStack
+   * @param line
    */
-  private Collection<Style> processInlineTags(Fragment fragment) {
-    Deque<MutablePair<String, Style>> styleStack = new LinkedList<>();
-    Deque<MatchResult> matchStack = new LinkedList<>();
-
-    Matcher matcher = TAG_PATTERN.matcher(fragment);
-    if (!matcher.find()) {
-      return Collections.emptySet();
+  private static void pushTags(
+      Segment segment, Deque<TagStyle> styleStack, Deque<Token> tagStack, ParsedLine line) {
+    if (isTag(segment)) {
+      String tag = ((Token) segment).getValue();
+      styleStack.push(mapToStyle(tag, line.diagnostics, line.row));
+      tagStack.push((Token) segment);
+    } else if (segment instanceof StyledSegment) {
+      pushTags(((StyledSegment) segment).getSegment(), styleStack, tagStack, line);
+    } else if (segment instanceof Fragment) {
+      for (Segment child : (Fragment) segment) {
+        pushTags(child, styleStack, tagStack, line);
+      }
     }
+  }
 
-    while (true) {
-      String tag = matcher.group(1);
+  /**
+   * Applies the styles of the inline tags to the text between them and their end tags.
+   *
+   * <p>The segments are moved to a new list one by one, so an end tag only needs to search for its
+   * start tag in the tail of that list, and the tags left open are removed from the line in a
+   * single pass afterward.
+   *
+   * @param segments
+   * @return the styles of the tags left open, which apply to the whole line.
+   */
+  private static Collection<Style> processInlineTags(List<Segment> segments, ParsedLine line) {
+    Deque<TagStyle> styleStack = new LinkedList<>();
+    Deque<Token> tagStack = new LinkedList<>();
+    List<Segment> resolved = new ArrayList<>(segments.size());
+
+    for (Segment segment : segments) {
+      if (!isTag(segment)) {
+        resolved.add(segment);
+        continue;
+      }
+
+      String tag = ((Token) segment).getValue();
       if (tag.endsWith("終わり")) {
         tag = tag.substring(0, tag.length() - 3);
 
         while (!styleStack.isEmpty()) {
-          MutablePair<String, Style> pair = styleStack.peek();
-          if (pair.left.equals(tag)) {
+          if (styleStack.peek().type.equals(tag)) {
             break;
           }
 
           styleStack.pop();
-          matchStack.pop();
+          tagStack.pop();
         }
 
-        MutablePair<String, Style> stylePair = styleStack.pop();
-        if (stylePair.right == null) {
+        TagStyle tagStyle = styleStack.pop();
+        if (tagStyle.style == null) {
           throw new NullPointerException();
         }
 
-        MatchResult match = matchStack.pop();
-
-        Segment segment = fragment.subSequence(match.end(), matcher.start());
-        StyledSegment styledSegment = new StyledSegment(segment);
-        styledSegment.addStyle(stylePair.right);
-        fragment.replace(match.start(), matcher.end(), styledSegment);
+        Token open = tagStack.pop();
 
-        if (!matcher.find(match.start())) {
-          break;
+        int start = resolved.size() - 1;
+        while (!contains(resolved.get(start), open)) {
+          --start;
         }
-      } else {
-        MutablePair<String, Style> stylePair = mapToStyle(tag);
-        if (stylePair == null) {
-          stylePair = MutablePair.of(tag, null);
+
+        List<Segment> range = resolved.subList(start, resolved.size());
+        Segment[] parts = split(range.get(0), open);
+        List<Segment> children = new ArrayList<>(range.size());
+        children.add(parts[1]);
+        children.addAll(range.subList(1, range.size()));
+
+        Segment inner = toSegment(children);
+        if (inner == null) {
+          inner = new Fragment(Collections.emptyList());
         }
 
-        styleStack.push(stylePair);
-        matchStack.push(matcher.toMatchResult());
+        StyledSegment styledSegment = new StyledSegment(inner, StyleSet.of(tagStyle.style));
 
-        if (!matcher.find()) {
-          break;
+        range.clear();
+        if (parts[0] != null && parts[0].length() > 0) {
+          range.add(parts[0]);
         }
+        range.add(styledSegment);
+
+        // tags left inside the segment are looked up again
+        pushTags(styledSegment, styleStack, tagStack, line);
+      } else {
+        styleStack.push(mapToStyle(tag, line.diagnostics, line.row));
+        tagStack.push((Token) segment);
+        resolved.add(segment);
       }
     }
 
+    segments.clear();
+    segments.addAll(resolved);
+
     if (styleStack.isEmpty()) {
       return Collections.emptySet();
     }
 
     Collection<Style> styles = new LinkedHashSet<>();
+    List<Token> tokens = new ArrayList<>(tagStack.size());
     while (!styleStack.isEmpty()) {
-      MutablePair<String, Style> pair = styleStack.removeLast();
-      MatchResult match = matchStack.removeLast();
+      TagStyle tagStyle = styleStack.removeLast();
+      Token token = tagStack.removeLast();
 
-      if (pair.right == null) {
-        LOG.warn("discarding tag {} on line {}", match.group(), row);
+      if (tagStyle.style == null) {
+        line.diagnostics.add(Diagnostics.Kind.DISCARDED_TAG, token.getValue(), line.row);
       } else {
-        styles.add(pair.right);
+        styles.add(tagStyle.style);
       }
 
-      fragment.replace(match.start(), match.end(), null);
+      tokens.add(token);
     }
 
+    removeAll(segments, tokens);
+
     return styles;
   }
 
-  private String parseMetaData(BufferedReader reader) throws IOException, ParseException {
-    String line;
+  /**
+   * Reads the book information and skips the legend following it, if any.
+   *
+   * @param context
+   * @param reader
+   * @throws BuildException
+   * @throws IOException
+   * @throws ParseException
+   */
+  private static void parseHeader(ParseContext context, LineReader reader)
+      throws BuildException, IOException, ParseException {
+    CharSequence line = parseMetaData(context, reader);
+    if (line == null) {
+      throw new EOFException();
+    }
+
+    reader.mark();
+    line = reader.readLine();
+    if (line == null) {
+      throw new EOFException();
+    } else {
+      reader.reset();
+    }
+
+    if (LEGEND_MARK_PATTERN.matcher(line).matches()) {
+      reader.readLine();
+      ++context.row;
+
+      while ((line = reader.readLine()) != null) {
+        ++context.row;
+
+        if (LEGEND_MARK_PATTERN.matcher(line).matches()) {
+          break;
+        }
+      }
+
+      reader.readLine();
+      ++context.row;
+    }
+  }
+
+  private static CharSequence parseMetaData(ParseContext context, LineReader reader)
+      throws BuildException, IOException, ParseException {
+    CharSequence line;
     List<String> metadata = new ArrayList<>(6);
 
     while ((line = reader.readLine()) != null) {
-      ++row;
+      ++context.row;
 
-      if (line.isEmpty()) {
+      if (line.length() == 0) {
         break;
       }
 
-      metadata.add(line);
+      metadata.add(line.toString());
     }
 
-    book.setProperty(BookProperty.Title, metadata.get(0));
+    context.sink.property(BookProperty.Title, metadata.get(0));
 
     switch (metadata.size()) {
       case 2:
-        book.setProperty(BookProperty.Author, metadata.get(1));
+        context.sink.property(BookProperty.Author, metadata.get(1));
         break;
 
       case 3:
-        book.setProperty(BookProperty.Subtitle, metadata.get(1));
-        book.setProperty(BookProperty.Author, metadata.get(2));
+        context.sink.property(BookProperty.Subtitle, metadata.get(1));
+        context.sink.property(BookProperty.Author, metadata.get(2));
         break;
 
       case 4:
-        book.setProperty(BookProperty.OriginalTitle, metadata.get(1));
-        book.setProperty(BookProperty.Author, metadata.get(2));
-        book.setProperty(BookProperty.Translator, metadata.get(3));
+        context.sink.property(BookProperty.OriginalTitle, metadata.get(1));
+        context.sink.property(BookProperty.Author, metadata.get(2));
+        context.sink.property(BookProperty.Translator, metadata.get(3));
         break;
 
       case 6:
-        book.setProperty(BookProperty.OriginalTitle, metadata.get(1));
-        book.setProperty(BookProperty.Subtitle, metadata.get(2));
-        book.setProperty(BookProperty.OriginalSubtitle, metadata.get(3));
-        book.setProperty(BookProperty.Author, metadata.get(4));
-        book.setProperty(BookProperty.Translator, metadata.get(5));
+        context.sink.property(BookProperty.OriginalTitle, metadata.get(1));
+        context.sink.property(BookProperty.Subtitle, metadata.get(2));
+        context.sink.property(BookProperty.OriginalSubtitle, metadata.get(3));
+        context.sink.property(BookProperty.Author, metadata.get(4));
+        context.sink.property(BookProperty.Translator, metadata.get(5));
         break;
 
       default:
-        throw new ParseException(row, "Invalid number of book info lines");
+        throw new ParseException(context.row, "Invalid number of book info lines");
     }
 
     return line;
   }
 
-  private String parseMainText(BufferedReader reader) throws IOException, ParseException {
-    String line;
+  private static CharSequence parseMainText(
+      ParseContext context, LineReader reader, ForkJoinPool pool)
+      throws BuildException, IOException, ParseException {
+    if (pool != null) {
+      return parseMainText(context, (ChunkedLineReader) reader, pool);
+    }
+
+    CharSequence line;
 
     while ((line = reader.readLine()) != null) {
-      ++row;
-
-      Matcher matcher = BLOCK_TAG_PATTERN.matcher(line);
-      if (matcher.matches()) {
-        String tag = matcher.group(1);
-
-        if (tag.startsWith("ここから")) {
-          enterBlock(tag.substring(4));
-        } else if (tag.startsWith("ここで")) {
-          leaveBlock(tag.substring(3, tag.length() - 3));
-        } else if (tag.startsWith("改")) {
-          breakChapter();
-        } else if (tag.equals("本文終わり")) {
-          break;
-        } else {
-          throw new ParseException(row, "Unexpected block tag: " + tag);
+      checkInterrupted();
+      if (!apply(context, interpret(context, line, ++context.row))) {
+        break;
+      }
+    }
+
+    return line;
+  }
+
+  /**
+   * Interprets batches of lines in parallel, each while the one before is applied in order. No line
+   * after the end of the main text is interpreted.
+   *
+   * @param context
+   * @param reader
+   * @param pool
+   * @return the line ending the main text, or {@code null} if the end of the file has been reached.
+   * @throws BuildException
+   * @throws IOException
+   * @throws ParseException
+   */
+  private static CharSequence parseMainText(
+      ParseContext context, ChunkedLineReader reader, ForkJoinPool pool)
+      throws BuildException, IOException, ParseException {
+    int row = context.row + 1;
+    List<String> lines = readBatch(reader);
+    ParsedLine[] results = new ParsedLine[lines.size()];
+    ForkJoinTask<Void> task =
+        pool.submit(new InterpretTask(context, lines, row, results, 0, results.length));
+
+    while (!lines.isEmpty()) {
+      List<String> nextLines =
+          END_OF_TEXT.equals(lines.get(lines.size() - 1))
+              ? Collections.<String>emptyList()
+              : readBatch(reader);
+      int nextRow = row + lines.size();
+      ParsedLine[] nextResults = new ParsedLine[nextLines.size()];
+      ForkJoinTask<Void> nextTask =
+          pool.submit(
+              new InterpretTask(context, nextLines, nextRow, nextResults, 0, nextResults.length));
+
+      boolean done = false;
+      try {
+        task.join();
+        for (int i = 0; i < results.length; ++i) {
+          checkInterrupted();
+          if (!apply(context, results[i])) {
+            return lines.get(i);
+          }
         }
+        done = true;
+      } finally {
+        if (!done) {
+          nextTask.cancel(false);
+        }
+      }
 
-        continue;
+      lines = nextLines;
+      row = nextRow;
+      results = nextResults;
+      task = nextTask;
+    }
+
+    return null;
+  }
+
+  /**
+   * @param reader
+   * @return up to {@link #BATCH_SIZE} lines, ending at the end of the main text if it is found.
+   * @throws IOException
+   */
+  private static List<String> readBatch(ChunkedLineReader reader) throws IOException {
+    List<String> lines = new ArrayList<>(BATCH_SIZE);
+    String line;
+
+    while (lines.size() < BATCH_SIZE && (line = reader.readLine()) != null) {
+      lines.add(line);
+      if (END_OF_TEXT.equals(line)) {
+        break;
       }
+    }
 
-      matcher = PROPERTY_TAG_PATTERN.matcher(line);
-      if (matcher.matches()) {
-        String key = matcher.group(1);
-        String value = matcher.group(2);
+    return lines;
+  }
 
-        switch (key) {
-          case "タイトル":
-            chapter.setProperty(BookProperty.Title, value);
-            break;
+  /**
+   * Interprets a line of the main text without touching the book, so that lines can be interpreted
+   * in any order.
+   *
+   * @param context
+   * @param text
+   * @param row
+   * @return
+   */
+  private static ParsedLine interpret(ParseContext context, CharSequence text, int row) {
+    ParsedLine line = new ParsedLine(row);
+
+    if (AozoraLexer.isPlainText(text)) {
+      // most lines have nothing to interpret
+      line.paragraph =
+          text.length() == 0
+              ? new Paragraph(new Fragment(Collections.<Segment>emptyList()))
+              : new Paragraph(text.toString());
+      return line;
+    }
 
-          default:
-            LOG.warn("Unknown chapter property: {}", key);
+    try {
+      if (matchTag(text, line)) {
+        return line;
+      }
+
+      parseLine(context, text, line);
+    } catch (DeadlineExceededException e) {
+      line.resources.clear();
+      line.diagnostics.clear();
+      line.diagnostics.add(Diagnostics.Kind.DEADLINE_EXCEEDED, "kept as plain text", row);
+      line.pageCenter = false;
+      line.paragraph =
+          new Paragraph(new Fragment(Collections.singletonList(new TextSegment(text.toString()))));
+    } catch (ParseException | RuntimeException e) {
+      line.error = e;
+    }
+
+    return line;
+  }
+
+  /**
+   * Aborts the parse if the thread has been interrupted, leaving its interrupt status set.
+   *
+   * @throws InterruptedIOException
+   */
+  private static void checkInterrupted() throws InterruptedIOException {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  /**
+   * Tells a block tag or a property, without a deadline, so that the chapters are found the same
+   * however long a line takes. Both patterns match in linear time on a line ending with a tag.
+   *
+   * @param text
+   * @param line
+   * @return true if {@code text} is a block tag or a property.
+   */
+  private static boolean matchTag(CharSequence text, ParsedLine line) {
+    // only a line consisting of tags can be a block tag or a property
+    int length = text.length();
+    if (length == 0 || text.charAt(0) != '［' || text.charAt(length - 1) != '］') {
+      return false;
+    }
+
+    Matcher matcher = BLOCK_TAG_PATTERN.matcher(text);
+    if (matcher.matches()) {
+      line.blockTag = matcher.group(1);
+      return true;
+    }
+
+    matcher = PROPERTY_TAG_PATTERN.matcher(text);
+    if (matcher.matches()) {
+      line.propertyKey = matcher.group(1);
+      line.propertyValue = matcher.group(2);
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Records where each chapter of the main text starts and ends. Only the lines starting with a tag
+   * are decoded.
+   *
+   * @param context
+   * @param reader
+   * @param index
+   * @return false if the end of the file has been reached.
+   * @throws IOException
+   */
+  private static boolean scanMainText(
+      ParseContext context, ByteLineReader reader, ChapterIndex index) throws IOException {
+    long start = reader.position();
+    int row = context.row;
+    String title = null;
+
+    while (true) {
+      long end = reader.position();
+
+      if (!reader.startsWith(context.encoding.tagPrefix)) {
+        if (!reader.skipLine()) {
+          index.add(new ChapterIndex.Entry(start, end, row, title));
+          return false;
         }
 
+        ++context.row;
         continue;
       }
 
-      Paragraph paragraph = parseLine(line);
-      if (paragraph != null) {
-        blockStack.peek().addElement(paragraph);
+      checkInterrupted();
+      CharSequence text = reader.readLine();
+      ParsedLine line = new ParsedLine(++context.row);
+
+      if (!matchTag(text, line)) {
+        continue;
       }
-    }
 
-    return line;
+      if (line.blockTag != null) {
+        if (line.blockTag.startsWith("改")) {
+          index.add(new ChapterIndex.Entry(start, end, row, title));
+          start = reader.position();
+          row = context.row;
+          title = null;
+        } else if (line.blockTag.equals("本文終わり")) {
+          index.add(new ChapterIndex.Entry(start, end, row, title));
+          return true;
+        }
+      } else if (line.propertyKey.equals("タイトル")) {
+        title = line.propertyValue;
+      }
+    }
   }
 
-  private Paragraph parseLine(String line) throws ParseException {
-    StringBuilder builder = new StringBuilder(line);
-    processAccent(builder);
-    processCharReference(builder);
+  /**
+   * @param context
+   * @param line
+   * @return false if the line ends the main text.
+   * @throws BuildException
+   * @throws ParseException
+   */
+  private static boolean apply(ParseContext context, ParsedLine line)
+      throws BuildException, ParseException {
+    context.row = line.row;
+    context.diagnostics.addAll(line.diagnostics);
+
+    if (line.error instanceof ParseException) {
+      throw (ParseException) line.error;
+    } else if (line.error != null) {
+      throw (RuntimeException) line.error;
+    }
 
-    Paragraph paragraph = new Paragraph(builder.toString());
+    for (Path path : line.resources) {
+      context.sink.resource(path);
+    }
 
-    Fragment fragment = paragraph.getFragment();
+    if (line.blockTag != null) {
+      String tag = line.blockTag;
+
+      if (tag.startsWith("ここから")) {
+        enterBlock(context, tag.substring(4));
+      } else if (tag.startsWith("ここで")) {
+        leaveBlock(context, tag.substring(3, tag.length() - 3));
+      } else if (tag.startsWith("改")) {
+        breakChapter(context);
+      } else if (tag.equals("本文終わり")) {
+        return false;
+      } else {
+        throw new ParseException(context.row, "Unexpected block tag: " + tag);
+      }
+    } else if (line.propertyKey != null) {
+      switch (line.propertyKey) {
+        case "タイトル":
+          context.sink.chapterProperty(BookProperty.Title, line.propertyValue);
+          break;
 
-    if (processMarker(fragment)) {
-      return null;
+        default:
+          context.diagnostics.add(
+              Diagnostics.Kind.UNKNOWN_CHAPTER_PROPERTY, line.propertyKey, context.row);
+      }
+    } else if (line.pageCenter) {
+      context.sink.chapterStyle(SimpleStyle.PageCenter);
+    } else if (line.paragraph != null) {
+      context.sink.paragraph(line.paragraph);
     }
 
-    processKunten(fragment);
-    processOkurigana(fragment);
-    processImage(fragment);
+    return true;
+  }
 
-    processRuby(fragment);
-    processAnnotation(fragment);
+  /**
+   * @param context
+   * @param text
+   * @param line
+   * @throws ParseException
+   */
+  private static void parseLine(ParseContext context, CharSequence text, ParsedLine line)
+      throws ParseException {
+    List<Segment> segments;
+    try {
+      segments = AozoraLexer.tokenize(text);
+    } catch (CharacterCodingException e) {
+      throw new ParseException(line.row, e);
+    }
 
-    Collection<Style> styles = processInlineTags(fragment);
-    for (Style style : styles) {
-      paragraph.addStyle(style);
+    if (processMarker(segments)) {
+      line.pageCenter = true;
+      return;
     }
 
-    return paragraph;
+    processImage(context, segments, line);
+
+    processRuby(segments);
+    processRubyArea(segments);
+    processAnnotation(segments, line);
+
+    Collection<Style> styles = processInlineTags(segments, line);
+
+    line.paragraph = new Paragraph(new Fragment(segments), StyleSet.of(styles));
   }
 
-  private void parseAfterText(BufferedReader reader) throws IOException {
-    String line;
+  private static void parseAfterText(ParseContext context, LineReader reader)
+      throws BuildException, IOException {
+    CharSequence line;
 
     while ((line = reader.readLine()) != null) {
-      ++row;
+      checkInterrupted();
+      ++context.row;
+
+      Matcher matcher =
+          PROPERTY_TAG_PATTERN.matcher(
+              new DeadlineCharSequence(line, System.nanoTime() + LINE_TIME_LIMIT));
+      boolean matches;
+      try {
+        matches = matcher.matches();
+      } catch (DeadlineExceededException e) {
+        context.diagnostics.add(Diagnostics.Kind.DEADLINE_EXCEEDED, "skipped", context.row);
+        continue;
+      }
 
-      Matcher matcher = PROPERTY_TAG_PATTERN.matcher(line);
-      if (matcher.matches()) {
+      if (matches) {
         String key = matcher.group(1);
         String value = matcher.group(2);
 
         switch (key) {
           case "シリーズ":
-            book.setProperty(BookProperty.Series, value);
+            context.sink.property(BookProperty.Series, value);
             break;
 
           case "巻数":
-            book.setProperty(BookProperty.SeriesPosition, value);
+            context.sink.property(BookProperty.SeriesPosition, value);
             break;
 
           default:
-            LOG.warn("Unknown book property: {}", key);
+            context.diagnostics.add(Diagnostics.Kind.UNKNOWN_BOOK_PROPERTY, key, context.row);
         }
       }
     }
@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+import java.nio.charset.CharacterCodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dacci.tsugumi.Util;
+import org.dacci.tsugumi.doc.Segment;
+import org.dacci.tsugumi.doc.SegmentVisitor;
+import org.dacci.tsugumi.doc.TextSegment;
+
+/**
+ * Splits a line of Aozora Bunko text into a stream of tokens in a single pass.
+ *
+ * <p>Accent decompositions ({@code 〔…〕}) and character references ({@code ※［＃…］}) are resolved into
+ * plain text before the line is split, exactly as the former regex passes did.
+ *
+ * @author dacci
+ */
+final class AozoraLexer {
+
+  /** */
+  enum TokenType {
+    /** {@code ［＃…］} */
+    TAG,
+
+    /** {@code 《…》} */
+    RUBY,
+
+    /** {@code ｜} */
+    BAR,
+  }
+
+  /** A piece of markup that has not been interpreted yet. */
+  static final class Token implements Segment {
+
+    private final TokenType type;
+
+    private final String source;
+
+    private final String value;
+
+    /**
+     * @param type
+     * @param source
+     * @param value
+     */
+    private Token(TokenType type, String source, String value) {
+      this.type = type;
+      this.source = source;
+      this.value = value;
+    }
+
+    /**
+     * @return the type
+     */
+    TokenType getType() {
+      return type;
+    }
+
+    /**
+     * @return the text between the brackets
+     */
+    String getValue() {
+      return value;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+      return source;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasChildren() {
+      return false;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public StringBuilder toString(StringBuilder builder) {
+      return builder.append(source);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int length() {
+      return source.length();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public char charAt(int index) {
+      return source.charAt(index);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Segment subSequence(int start, int end) {
+      throw new UnsupportedOperationException();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R, X extends Exception> R accept(SegmentVisitor<R, X> visitor) throws X {
+      return visitor.visitOther(this);
+    }
+  }
+
+  private static final Token BAR = new Token(TokenType.BAR, "｜", "");
+
+  /** The characters any markup starts with, as a bitmap indexed by the character. */
+  private static final long[] MARKUP_CHARS = new long[(Character.MAX_VALUE + 1) >> 6];
+
+  static {
+    for (char c : "［《｜〔※".toCharArray()) {
+      MARKUP_CHARS[c >> 6] |= 1L << c;
+    }
+  }
+
+  /**
+   * @param line
+   * @return true if {@code line} contains no markup at all, in which case it is plain text as is.
+   */
+  static boolean isPlainText(CharSequence line) {
+    for (int i = 0, l = line.length(); i < l; ++i) {
+      char c = line.charAt(i);
+      if ((MARKUP_CHARS[c >> 6] & 1L << c) != 0) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * @param line
+   * @return the segments of the line, each being either a {@link Token} or a plain text
+   * @throws CharacterCodingException
+   */
+  static List<Segment> tokenize(CharSequence line) throws CharacterCodingException {
+    // the line is copied out of the reader only once, and the texts refer to the copy
+    String text = processCharReference(processAccent(line)).toString();
+    List<Segment> tokens = new ArrayList<>();
+
+    int lastTagEnd = Util.lastIndexOf(text, '］');
+    int lastRubyEnd = Util.lastIndexOf(text, '》');
+
+    int start = 0;
+    for (int i = 0, l = text.length(); i < l; ) {
+      char c = text.charAt(i);
+
+      if (c == '［' && i + 1 < l && text.charAt(i + 1) == '＃' && i + 3 <= lastTagEnd) {
+        int end = Util.indexOf(text, '］', i + 3);
+        addText(tokens, text, start, i);
+        tokens.add(
+            new Token(TokenType.TAG, text.substring(i, end + 1), text.substring(i + 2, end)));
+        i = start = end + 1;
+      } else if (c == '《' && i + 2 <= lastRubyEnd) {
+        int end = Util.indexOf(text, '》', i + 2);
+        addText(tokens, text, start, i);
+        tokens.add(
+            new Token(TokenType.RUBY, text.substring(i, end + 1), text.substring(i + 1, end)));
+        i = start = end + 1;
+      } else if (c == '｜') {
+        addText(tokens, text, start, i);
+        tokens.add(BAR);
+        i = start = i + 1;
+      } else {
+        ++i;
+      }
+    }
+    addText(tokens, text, start, text.length());
+
+    return tokens;
+  }
+
+  /**
+   * @param tokens
+   * @param text
+   * @param start
+   * @param end
+   */
+  private static void addText(List<Segment> tokens, String text, int start, int end) {
+    if (start < end) {
+      tokens.add(new TextSegment(text, start, end));
+    }
+  }
+
+  /**
+   * @param line
+   * @return
+   */
+  private static CharSequence processAccent(CharSequence line) {
+    int start = Util.indexOf(line, '〔', 0);
+    if (start == -1) {
+      return line;
+    }
+
+    String input = line.toString();
+    StringBuilder builder = new StringBuilder(input.length());
+    int copied = 0;
+
+    while (start != -1) {
+      int end = input.indexOf('〕', start + 2);
+      if (end == -1) {
+        break;
+      }
+
+      String original = input.substring(start + 1, end);
+      String replaced = AozoraAccentMap.replaceAll(original);
+      if (!replaced.equals(original)) {
+        builder.append(input, copied, start).append(replaced);
+        copied = end + 1;
+      }
+
+      start = input.indexOf('〔', end + 1);
+    }
+
+    return builder.append(input, copied, input.length()).toString();
+  }
+
+  /**
+   * Replaces {@code ※［＃…、…］} the same way as the pattern {@code
+   * ※［＃(.+?)、(?:.*?(\d+)-(\d+)-(\d+)|(U\+([0-9A-Fa-f]{4,6}))?.*)］} did.
+   *
+   * @param line
+   * @return
+   * @throws CharacterCodingException
+   */
+  private static CharSequence processCharReference(CharSequence line)
+      throws CharacterCodingException {
+    if (Util.indexOf(line, '※', 0) == -1) {
+      return line;
+    }
+
+    String input = line.toString();
+    int start = input.indexOf("※［＃");
+    if (start == -1) {
+      return input;
+    }
+
+    int last = input.lastIndexOf('］');
+    StringBuilder builder = new StringBuilder(input.length());
+    int copied = 0;
+
+    while (start != -1) {
+      int comma = input.indexOf('、', start + 4);
+      if (comma == -1 || last < comma) {
+        break;
+      }
+
+      builder.append(input, copied, start);
+      int end;
+
+      int[] numbers = findNumbers(input, comma + 1);
+      if (numbers != null) {
+        int plane = parseNumber(input, numbers[0], numbers[1]);
+        int row = parseNumber(input, numbers[1] + 1, numbers[2]);
+        int cell = parseNumber(input, numbers[2] + 1, numbers[3]);
+
+        AozoraFormat.appendChar(builder, plane, row, cell);
+        end = numbers[3] + 1;
+      } else {
+        int digits = 0;
+        if (input.startsWith("U+", comma + 1)) {
+          for (int i = comma + 3; i < input.length() && digits < 6; ++i, ++digits) {
+            if (!isHexDigit(input.charAt(i))) {
+              break;
+            }
+          }
+        }
+
+        if (digits >= 4) {
+          builder.appendCodePoint(
+              Integer.parseInt(input.substring(comma + 3, comma + 3 + digits), 16));
+        } else {
+          builder.append('※').append(input, start + 3, comma);
+        }
+
+        end = last + 1;
+      }
+
+      copied = end;
+
+      start = input.indexOf("※［＃", end);
+    }
+
+    return builder.append(input, copied, input.length()).toString();
+  }
+
+  /**
+   * Finds the first {@code \d+-\d+-\d+］} at or after {@code from}.
+   *
+   * @param input
+   * @param from
+   * @return the start of the first number, the positions of the two hyphens and the position of the
+   *     closing bracket, or {@code null} if not found
+   */
+  private static int[] findNumbers(String input, int from) {
+    for (int i = from, l = input.length(); i < l; ) {
+      if (!isDigit(input.charAt(i))) {
+        ++i;
+        continue;
+      }
+
+      int[] result = new int[4];
+      result[0] = i;
+
+      int j = i;
+      for (int n = 1; n < 4; ++n) {
+        int digits = j;
+        while (j < l && isDigit(input.charAt(j))) {
+          ++j;
+        }
+
+        char expected = n < 3 ? '-' : '］';
+        if (j == digits || j == l || input.charAt(j) != expected) {
+          result = null;
+          break;
+        }
+
+        result[n] = j++;
+      }
+
+      if (result != null) {
+        return result;
+      }
+
+      // every position in the same run of digits fails the same way
+      while (i < l && isDigit(input.charAt(i))) {
+        ++i;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * @param input
+   * @param start
+   * @param end
+   * @return the decimal number in the range, or {@link Integer#MAX_VALUE} if it does not fit.
+   */
+  private static int parseNumber(String input, int start, int end) {
+    int value = 0;
+    for (int i = start; i < end; ++i) {
+      value = value * 10 + input.charAt(i) - '0';
+      if (value >= 100_000) {
+        return Integer.MAX_VALUE;
+      }
+    }
+
+    return value;
+  }
+
+  /**
+   * @param c
+   * @return
+   */
+  private static boolean isDigit(char c) {
+    return '0' <= c && c <= '9';
+  }
+
+  /**
+   * @param c
+   * @return
+   */
+  private static boolean isHexDigit(char c) {
+    return isDigit(c) || 'A' <= c && c <= 'F' || 'a' <= c && c <= 'f';
+  }
+
+  private AozoraLexer() {}
+}
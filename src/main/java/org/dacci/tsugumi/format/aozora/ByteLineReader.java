@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+
+/**
+ * Reads lines from a memory-mapped file, decoding only the lines actually read.
+ *
+ * <p>Lines can be inspected and skipped as bytes, and the byte offset of the next line is always
+ * known, which makes this reader suitable for scanning a file without interpreting most of it.
+ * Lines are terminated the same way as {@link MappedLineReader} does.
+ *
+ * @author dacci
+ */
+final class ByteLineReader implements LineReader {
+
+  private final SourceFile file;
+
+  private final ByteBuffer bytes;
+
+  private final int start;
+
+  private final int limit;
+
+  private final CharsetDecoder decoder;
+
+  private int position;
+
+  private int mark = -1;
+
+  /**
+   * @param file the file to read, which is closed with this reader
+   * @param charset
+   * @param start the offset of the first line
+   * @throws IOException
+   */
+  ByteLineReader(SourceFile file, Charset charset, long start) throws IOException {
+    this.file = file;
+
+    try {
+      long size = file.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("File too large: " + size + " bytes");
+      }
+
+      bytes = file.map(0, size);
+      limit = (int) size;
+      this.start = (int) Math.min(start, size);
+      position = this.start;
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+
+    decoder = charset.newDecoder();
+  }
+
+  /**
+   * @return the byte offset of the next line.
+   */
+  long position() {
+    return position;
+  }
+
+  /**
+   * @param prefix
+   * @return true if the next line starts with {@code prefix}.
+   */
+  boolean startsWith(byte[] prefix) {
+    return matches(position, prefix);
+  }
+
+  /**
+   * Skips the next line without decoding it.
+   *
+   * @return false if the end of the file has been reached.
+   */
+  boolean skipLine() {
+    if (position == limit) {
+      return false;
+    }
+
+    position = skipTerminator(findLineEnd(position));
+
+    return true;
+  }
+
+  /**
+   * Moves past the last line after the current position that consists of {@code line}, searching
+   * backward from the end of the file.
+   *
+   * @param line
+   * @return false if there is no such line, in which case the position is left unchanged.
+   */
+  boolean seekPastLast(byte[] line) {
+    for (int i = limit - line.length; i >= position; --i) {
+      if (matches(i, line)
+          && (i == start || isTerminator(bytes.get(i - 1)))
+          && (i + line.length == limit || isTerminator(bytes.get(i + line.length)))) {
+        position = skipTerminator(i + line.length);
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * @param offset
+   * @param pattern
+   * @return true if the bytes at {@code offset} equal {@code pattern}.
+   */
+  private boolean matches(int offset, byte[] pattern) {
+    if (limit - offset < pattern.length) {
+      return false;
+    }
+
+    for (int i = 0; i < pattern.length; ++i) {
+      if (bytes.get(offset + i) != pattern[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * @param b
+   * @return true if {@code b} is CR or LF.
+   */
+  private static boolean isTerminator(byte b) {
+    return b == '\n' || b == '\r';
+  }
+
+  /**
+   * @param start
+   * @return the offset of the terminator of the line starting at {@code start}, or the end of the
+   *     file.
+   */
+  private int findLineEnd(int start) {
+    for (int i = start; i < limit; ++i) {
+      if (isTerminator(bytes.get(i))) {
+        return i;
+      }
+    }
+
+    return limit;
+  }
+
+  /**
+   * @param end
+   * @return the start of the line following the terminator at {@code end}.
+   */
+  private int skipTerminator(int end) {
+    if (end == limit) {
+      return end;
+    }
+
+    if (bytes.get(end) == '\r' && end + 1 < limit && bytes.get(end + 1) == '\n') {
+      return end + 2;
+    }
+
+    return end + 1;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CharSequence readLine() throws IOException {
+    if (position == limit) {
+      return null;
+    }
+
+    int end = findLineEnd(position);
+
+    ByteBuffer line = bytes.duplicate();
+    line.limit(end);
+    line.position(position);
+
+    position = skipTerminator(end);
+
+    return decoder.decode(line);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void mark() {
+    mark = position;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void reset() {
+    if (mark < 0) {
+      throw new IllegalStateException("not marked");
+    }
+
+    position = mark;
+    mark = -1;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
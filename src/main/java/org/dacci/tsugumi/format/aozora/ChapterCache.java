@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dacci.tsugumi.doc.Chapter;
+import org.dacci.tsugumi.doc.ChapterCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chapters parsed before, keyed by the digest of their source lines and the state entering them,
+ * saved next to the source file. The key also covers the versions of the parser and {@link
+ * ChapterCodec}, so the chapters cached by another version are parsed again.
+ *
+ * <p>Chapters are kept encoded by {@link ChapterCodec}, and decoded when looked up, along with the
+ * problems found while parsing them.
+ *
+ * @author dacci
+ */
+final class ChapterCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ChapterCache.class);
+
+  private static final int MAGIC = 0x54534343;
+
+  private static final int VERSION = 2;
+
+  private static final String SUFFIX = ".cache";
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  /** Reads bytes from an array like {@link java.io.ByteArrayInputStream} without locking. */
+  private static final class BytesInput extends InputStream {
+
+    private final byte[] bytes;
+
+    private int position;
+
+    /**
+     * @param bytes
+     */
+    BytesInput(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read() {
+      return position < bytes.length ? bytes[position++] & 0xFF : -1;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (position == bytes.length) {
+        return len == 0 ? 0 : -1;
+      }
+
+      int count = Math.min(len, bytes.length - position);
+      System.arraycopy(bytes, position, b, off, count);
+      position += count;
+
+      return count;
+    }
+  }
+
+  /** The entries loaded and not used yet. */
+  private final Map<String, byte[]> loaded;
+
+  /** The entries used or added, which are to be saved. */
+  private final Map<String, byte[]> entries = new HashMap<>();
+
+  private final MessageDigest digest;
+
+  /** The file system the resources are in, which is the archive the source file is in if any. */
+  private final FileSystem fileSystem;
+
+  /**
+   * @param loaded
+   * @param fileSystem
+   */
+  private ChapterCache(Map<String, byte[]> loaded, FileSystem fileSystem) {
+    this.loaded = loaded;
+    this.fileSystem = fileSystem;
+
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param source
+   * @return the file the cache of {@code source} is saved to.
+   */
+  private static Path toCachePath(Path source) {
+    Path local = SourceFile.toLocalPath(source);
+    return local.resolveSibling(local.getFileName() + SUFFIX);
+  }
+
+  /**
+   * @param source
+   * @return the cache saved for {@code source}, or an empty one if there is none.
+   */
+  static ChapterCache load(Path source) {
+    Path path = toCachePath(source);
+    Map<String, byte[]> loaded = new HashMap<>();
+
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+        for (int i = in.readInt(); i > 0; --i) {
+          String key = in.readUTF();
+          byte[] bytes = new byte[in.readInt()];
+          in.readFully(bytes);
+          loaded.put(key, bytes);
+        }
+      }
+    } catch (NoSuchFileException e) {
+      // nothing cached yet
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Ignoring broken chapter cache: {}", path, e);
+      loaded.clear();
+    }
+
+    return new ChapterCache(loaded, source.getFileSystem());
+  }
+
+  /**
+   * Saves the entries used or added since loaded next to {@code source}.
+   *
+   * @param source
+   * @throws IOException
+   */
+  void save(Path source) throws IOException {
+    SourceFile.save(
+        toCachePath(source),
+        new SourceFile.Writer() {
+          @Override
+          public void write(OutputStream stream) throws IOException {
+            writeTo(new DataOutputStream(new BufferedOutputStream(stream)));
+          }
+        });
+  }
+
+  /**
+   * @param out
+   * @throws IOException
+   */
+  private void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+
+    out.writeInt(entries.size());
+    for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeInt(entry.getValue().length);
+      out.write(entry.getValue());
+    }
+
+    out.flush();
+  }
+
+  /**
+   * @param source the whole source file
+   * @param entry the chapter in the source file
+   * @param sourcePath the path relative resources are resolved against
+   * @param blockTypes the types of the blocks open when entering the chapter
+   * @return the key of the chapter.
+   */
+  String key(
+      ByteBuffer source, ChapterIndex.Entry entry, Path sourcePath, Collection<String> blockTypes) {
+    digest.update(AozoraFormat.PARSER_VERSION.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    digest.update(Integer.toString(ChapterCodec.VERSION).getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    digest.update(sourcePath.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    for (String blockType : blockTypes) {
+      digest.update(blockType.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+    }
+    digest.update((byte) 0);
+
+    ByteBuffer lines = source.duplicate();
+    lines.limit((int) entry.end);
+    lines.position((int) entry.start);
+    digest.update(lines);
+
+    byte[] hash = digest.digest();
+    char[] chars = new char[hash.length * 2];
+    for (int i = 0; i < hash.length; ++i) {
+      chars[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0x0F];
+      chars[i * 2 + 1] = HEX_DIGITS[hash[i] & 0x0F];
+    }
+
+    return new String(chars);
+  }
+
+  /**
+   * @param key
+   * @param row the number of the line preceding the chapter now
+   * @param diagnostics the problems found in the book so far, to add those of the chapter to
+   * @return the chapter cached for {@code key}, or {@code null} if there is none.
+   */
+  Chapter get(String key, int row, Diagnostics diagnostics) {
+    byte[] bytes = loaded.remove(key);
+    if (bytes != null) {
+      entries.put(key, bytes);
+    } else {
+      // the same chapter may appear more than once
+      bytes = entries.get(key);
+      if (bytes == null) {
+        return null;
+      }
+    }
+
+    try (DataInputStream in = new DataInputStream(new BytesInput(bytes))) {
+      List<Path> resources = new ArrayList<>();
+      for (int i = in.readInt(); i > 0; --i) {
+        resources.add(fileSystem.getPath(in.readUTF()));
+      }
+
+      Diagnostics found = new Diagnostics();
+      found.read(in, row);
+
+      Chapter chapter = ChapterCodec.read(in, fileSystem, resources);
+      diagnostics.addAll(found);
+
+      return chapter;
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Ignoring broken chapter in cache", e);
+      entries.remove(key);
+      return null;
+    }
+  }
+
+  /**
+   * @param key
+   * @param row the number of the line preceding the chapter
+   * @param chapter
+   * @param diagnostics the problems found in the chapter
+   */
+  void put(String key, int row, Chapter chapter, Diagnostics diagnostics) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      List<Path> resources = chapter.resources();
+      out.writeInt(resources.size());
+      for (Path resource : resources) {
+        out.writeUTF(resource.toString());
+      }
+
+      diagnostics.write(out, row);
+      ChapterCodec.write(out, chapter);
+    } catch (IOException e) {
+      LOG.warn("Failed to cache chapter", e);
+      return;
+    }
+
+    entries.put(key, bytes.toByteArray());
+  }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dacci.tsugumi.doc.BookProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Where each chapter of a source file starts and ends, along with the properties of the book, so
+ * that chapters can be parsed one at a time.
+ *
+ * <p>The index can be saved next to the source file, and is reused as long as the content of the
+ * source file stays the same, which is told by its digest, and it is read by the same version of
+ * the parser. The problems found outside the chapters are kept with it, to be reported along with
+ * those of the chapters.
+ *
+ * @author dacci
+ */
+final class ChapterIndex {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ChapterIndex.class);
+
+  private static final int MAGIC = 0x54534349;
+
+  private static final int VERSION = 5;
+
+  private static final String SUFFIX = ".idx";
+
+  /** A chapter in the source file. */
+  static final class Entry {
+
+    /** The byte offset of the first line of the chapter. */
+    final long start;
+
+    /** The byte offset just past the last line of the chapter. */
+    final long end;
+
+    /** The number of the line preceding the chapter. */
+    final int row;
+
+    final String title;
+
+    /**
+     * @param start
+     * @param end
+     * @param row
+     * @param title
+     */
+    Entry(long start, long end, int row, String title) {
+      this.start = start;
+      this.end = end;
+      this.row = row;
+      this.title = title;
+    }
+  }
+
+  private final long size;
+
+  /** The SHA-256 digest of the source file. */
+  private final byte[] digest;
+
+  private final SourceEncoding encoding;
+
+  private final EnumMap<BookProperty, String> properties = new EnumMap<>(BookProperty.class);
+
+  private final List<Entry> entries = new ArrayList<>();
+
+  private final Diagnostics headDiagnostics = new Diagnostics();
+
+  private final Diagnostics tailDiagnostics = new Diagnostics();
+
+  /**
+   * Creates an empty index for the current content of {@code source}.
+   *
+   * @param source
+   * @param encoding
+   * @throws IOException
+   */
+  ChapterIndex(SourceFile.Source source, SourceEncoding encoding) throws IOException {
+    this(Files.size(source.path()), digest(source), encoding);
+  }
+
+  /**
+   * @param size
+   * @param digest
+   * @param encoding
+   */
+  private ChapterIndex(long size, byte[] digest, SourceEncoding encoding) {
+    this.size = size;
+    this.digest = digest;
+    this.encoding = encoding;
+  }
+
+  /**
+   * @param source
+   * @return the digest of the content of {@code source}.
+   * @throws IOException
+   */
+  private static byte[] digest(SourceFile.Source source) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    try (SourceFile file = source.open()) {
+      digest.update(file.map(0, file.size()));
+    }
+
+    return digest.digest();
+  }
+
+  /**
+   * @param source
+   * @return the file the index of {@code source} is saved to.
+   */
+  private static Path toIndexPath(Path source) {
+    Path local = SourceFile.toLocalPath(source);
+    return local.resolveSibling(local.getFileName() + SUFFIX);
+  }
+
+  /**
+   * @param source
+   * @return the index saved for {@code source}, or {@code null} if there is none or it is out of
+   *     date.
+   */
+  static ChapterIndex load(SourceFile.Source source) {
+    Path path = toIndexPath(source.path());
+
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC
+          || in.readInt() != VERSION
+          || !in.readUTF().equals(AozoraFormat.PARSER_VERSION)) {
+        return null;
+      }
+
+      long size = in.readLong();
+      byte[] digest = new byte[in.readInt()];
+      in.readFully(digest);
+      SourceEncoding encoding = SourceEncoding.values()[in.readInt()];
+
+      // the size is compared first not to read the whole file in vain
+      if (size != Files.size(source.path()) || !Arrays.equals(digest, digest(source))) {
+        return null;
+      }
+
+      ChapterIndex index = new ChapterIndex(size, digest, encoding);
+
+      BookProperty[] keys = BookProperty.values();
+      for (int i = in.readInt(); i > 0; --i) {
+        BookProperty key = keys[in.readInt()];
+        index.properties.put(key, in.readUTF());
+      }
+
+      for (int i = in.readInt(); i > 0; --i) {
+        long start = in.readLong();
+        long end = in.readLong();
+        int row = in.readInt();
+        String title = in.readBoolean() ? in.readUTF() : null;
+        index.entries.add(new Entry(start, end, row, title));
+      }
+
+      index.headDiagnostics.read(in, 0);
+      index.tailDiagnostics.read(in, 0);
+
+      return index;
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Ignoring broken chapter index: {}", path, e);
+      return null;
+    }
+  }
+
+  /**
+   * Saves the index next to {@code source}.
+   *
+   * @param source
+   * @throws IOException
+   */
+  void save(Path source) throws IOException {
+    SourceFile.save(
+        toIndexPath(source),
+        new SourceFile.Writer() {
+          @Override
+          public void write(OutputStream stream) throws IOException {
+            writeTo(new DataOutputStream(new BufferedOutputStream(stream)));
+          }
+        });
+  }
+
+  /**
+   * @param out
+   * @throws IOException
+   */
+  private void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(AozoraFormat.PARSER_VERSION);
+    out.writeLong(size);
+    out.writeInt(digest.length);
+    out.write(digest);
+    out.writeInt(encoding.ordinal());
+
+    out.writeInt(properties.size());
+    for (Map.Entry<BookProperty, String> entry : properties.entrySet()) {
+      out.writeInt(entry.getKey().ordinal());
+      out.writeUTF(entry.getValue());
+    }
+
+    out.writeInt(entries.size());
+    for (Entry entry : entries) {
+      out.writeLong(entry.start);
+      out.writeLong(entry.end);
+      out.writeInt(entry.row);
+      out.writeBoolean(entry.title != null);
+      if (entry.title != null) {
+        out.writeUTF(entry.title);
+      }
+    }
+
+    headDiagnostics.write(out, 0);
+    tailDiagnostics.write(out, 0);
+
+    out.flush();
+  }
+
+  /**
+   * @return the encoding the source file is written in.
+   */
+  SourceEncoding encoding() {
+    return encoding;
+  }
+
+  /**
+   * @param key
+   * @param value
+   */
+  void setProperty(BookProperty key, String value) {
+    properties.put(key, value);
+  }
+
+  /**
+   * @return the properties of the book.
+   */
+  Map<BookProperty, String> properties() {
+    return Collections.unmodifiableMap(properties);
+  }
+
+  /**
+   * @param entry
+   */
+  void add(Entry entry) {
+    entries.add(entry);
+  }
+
+  /**
+   * @return the chapters in order.
+   */
+  List<Entry> entries() {
+    return Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * @return the problems found before the main text.
+   */
+  Diagnostics headDiagnostics() {
+    return headDiagnostics;
+  }
+
+  /**
+   * @return the problems found after the main text.
+   */
+  Diagnostics tailDiagnostics() {
+    return tailDiagnostics;
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+import java.lang.Character.UnicodeBlock;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Classifies characters by the Unicode block they belong to, which tells kanji, hiragana, katakana,
+ * Latin and the others apart.
+ *
+ * <p>The blocks of all the {@code char} values are numbered and tabulated once, so that classifying
+ * a character is a single array access instead of a binary search by {@link UnicodeBlock#of(char)}.
+ * Two characters have the same class if and only if {@link UnicodeBlock#of(char)} returns the same
+ * block for them.
+ *
+ * @author dacci
+ */
+final class CharClass {
+
+  /** The class of the characters not in any block. */
+  static final int NONE = 0;
+
+  private static final byte[] CLASSES = new byte[Character.MAX_VALUE + 1];
+
+  static {
+    Map<UnicodeBlock, Integer> numbers = new IdentityHashMap<>();
+
+    for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; ++c) {
+      UnicodeBlock block = UnicodeBlock.of((char) c);
+      if (block == null) {
+        continue;
+      }
+
+      Integer number = numbers.get(block);
+      if (number == null) {
+        number = numbers.size() + 1;
+        if (number > 0xFF) {
+          throw new AssertionError("too many blocks");
+        }
+
+        numbers.put(block, number);
+      }
+
+      CLASSES[c] = (byte) number.intValue();
+    }
+  }
+
+  private CharClass() {}
+
+  /**
+   * @param c
+   * @return the class of {@code c}, or {@link #NONE} if it is not in any block.
+   */
+  static int of(char c) {
+    return CLASSES[c] & 0xFF;
+  }
+}
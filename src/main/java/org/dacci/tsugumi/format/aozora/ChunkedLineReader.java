@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Reads the lines of a file, decoding a few chunks of it in parallel ahead of the line being read.
+ *
+ * <p>The file is split right after line terminators. Neither CR nor LF can be part of a multi-byte
+ * character in Shift_JIS or UTF-8, so every chunk starts at the beginning of a character and can be
+ * decoded on its own. Lines are terminated the same way as {@link MappedLineReader} does.
+ *
+ * @author dacci
+ */
+final class ChunkedLineReader implements LineReader {
+
+  private static final int CHUNK_SIZE = 1 << 20;
+
+  private static final int BUFFER_SIZE = 4096;
+
+  /** Decodes a chunk of the file into lines. */
+  @SuppressWarnings("serial")
+  private static final class ReadTask extends RecursiveTask<List<String>> {
+
+    private final SourceFile file;
+
+    private final long start;
+
+    private final long end;
+
+    private final Charset charset;
+
+    /**
+     * @param file
+     * @param start
+     * @param end
+     * @param charset
+     */
+    ReadTask(SourceFile file, long start, long end, Charset charset) {
+      this.file = file;
+      this.start = start;
+      this.end = end;
+      this.charset = charset;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected List<String> compute() {
+      CharBuffer chars;
+      try {
+        chars = charset.newDecoder().decode(file.map(start, end - start));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+
+      char[] array = chars.array();
+      int offset = chars.arrayOffset();
+      int limit = offset + chars.limit();
+      int lineStart = offset;
+      List<String> lines = new ArrayList<>();
+
+      for (int i = offset; i < limit; ++i) {
+        char c = array[i];
+        if (c != '\n' && c != '\r') {
+          continue;
+        }
+
+        lines.add(new String(array, lineStart, i - lineStart));
+
+        if (c == '\r' && i + 1 < limit && array[i + 1] == '\n') {
+          ++i;
+        }
+        lineStart = i + 1;
+      }
+
+      if (lineStart < limit) {
+        lines.add(new String(array, lineStart, limit - lineStart));
+      }
+
+      return lines;
+    }
+  }
+
+  private final SourceFile file;
+
+  private final Charset charset;
+
+  private final ForkJoinPool pool;
+
+  /** The offset of the first line, followed by the end of each chunk. */
+  private final List<Long> bounds;
+
+  /** The chunks submitted so far, of which those before the one being read are released. */
+  private final List<ForkJoinTask<List<String>>> chunks = new ArrayList<>();
+
+  private int chunk = -1;
+
+  private List<String> lines = Collections.emptyList();
+
+  private int position;
+
+  private int markChunk = -1;
+
+  private int mark = -1;
+
+  /**
+   * @param file the file to read, which is closed with the reader
+   * @param charset
+   * @param start the offset of the first line
+   * @param pool
+   * @throws IOException
+   */
+  ChunkedLineReader(SourceFile file, Charset charset, long start, ForkJoinPool pool)
+      throws IOException {
+    this.file = file;
+    this.charset = charset;
+    this.pool = pool;
+
+    boolean done = false;
+    try {
+      bounds = new ArrayList<>();
+      bounds.add(start);
+      bounds.addAll(split(file, start));
+
+      submit();
+      done = true;
+    } finally {
+      if (!done) {
+        file.close();
+      }
+    }
+  }
+
+  /**
+   * Submits the chunks up to as many ahead of the one being read as the pool can decode at once.
+   */
+  private void submit() {
+    int last = Math.min(chunk + pool.getParallelism(), bounds.size() - 2);
+    for (int i = chunks.size(); i <= last; ++i) {
+      chunks.add(pool.submit(new ReadTask(file, bounds.get(i), bounds.get(i + 1), charset)));
+    }
+  }
+
+  /**
+   * Moves to the next chunk, releasing those which can no longer be read.
+   *
+   * @return false if there is no more chunk.
+   * @throws IOException
+   */
+  private boolean nextChunk() throws IOException {
+    if (chunk + 1 == bounds.size() - 1) {
+      return false;
+    }
+
+    ++chunk;
+    submit();
+
+    try {
+      lines = chunks.get(chunk).join();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    position = 0;
+
+    for (int i = mark < 0 ? chunk : markChunk; --i >= 0 && chunks.get(i) != null; ) {
+      chunks.set(i, null);
+    }
+
+    return true;
+  }
+
+  /**
+   * @param file
+   * @param start
+   * @return the end of each chunk.
+   * @throws IOException
+   */
+  private static List<Long> split(SourceFile file, long start) throws IOException {
+    long size = file.size();
+    List<Long> ends = new ArrayList<>();
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    for (long end = findLineStart(file, start + CHUNK_SIZE, buffer);
+        end < size;
+        end = findLineStart(file, end + CHUNK_SIZE, buffer)) {
+      ends.add(end);
+    }
+    ends.add(size);
+
+    return ends;
+  }
+
+  /**
+   * @param file
+   * @param position
+   * @param buffer
+   * @return the start of the first line after {@code position}, or {@link Long#MAX_VALUE} if there
+   *     is none.
+   * @throws IOException
+   */
+  private static long findLineStart(SourceFile file, long position, ByteBuffer buffer)
+      throws IOException {
+    while (true) {
+      buffer.clear();
+      int read = file.read(buffer, position);
+      if (read <= 0) {
+        return Long.MAX_VALUE;
+      }
+
+      for (int i = 0; i < read; ++i) {
+        byte b = buffer.get(i);
+        if (b == '\n') {
+          return position + i + 1;
+        }
+        if (b != '\r') {
+          continue;
+        }
+
+        if (i + 1 < read) {
+          return position + i + (buffer.get(i + 1) == '\n' ? 2 : 1);
+        }
+
+        if (read < buffer.capacity()) {
+          // the end of the file
+          return position + i + 1;
+        }
+
+        // need to know whether LF follows
+        position += i;
+        read = 0;
+        break;
+      }
+
+      position += read;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String readLine() throws IOException {
+    while (position == lines.size()) {
+      if (!nextChunk()) {
+        return null;
+      }
+    }
+
+    return lines.get(position++);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void mark() {
+    markChunk = chunk;
+    mark = position;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void reset() {
+    if (mark < 0) {
+      throw new IllegalStateException("not marked");
+    }
+
+    if (chunk != markChunk) {
+      chunk = markChunk;
+      lines = chunk < 0 ? Collections.<String>emptyList() : chunks.get(chunk).join();
+    }
+    position = mark;
+    mark = -1;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException {
+    for (ForkJoinTask<List<String>> task : chunks) {
+      if (task != null) {
+        task.cancel(false);
+      }
+    }
+
+    file.close();
+  }
+}
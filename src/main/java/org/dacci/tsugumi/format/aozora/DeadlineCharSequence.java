@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+/**
+ * Wraps the input of a regex so that matching gives up once a deadline has passed, however badly
+ * the pattern backtracks.
+ *
+ * <p>Only the time is checked. An interrupt is not a reason to give up a line but to abort the
+ * whole parse, which the parser checks between lines.
+ *
+ * <p>The clock is read only every {@link #CHECK_INTERVAL} characters, which keeps the overhead on
+ * ordinary input negligible.
+ *
+ * @author dacci
+ */
+final class DeadlineCharSequence implements CharSequence {
+
+  /** Thrown from {@link #charAt(int)} when the deadline has passed. */
+  @SuppressWarnings("serial")
+  static final class DeadlineExceededException extends RuntimeException {
+
+    DeadlineExceededException() {
+      super(null, null, false, false);
+    }
+  }
+
+  private static final int CHECK_INTERVAL = 1024;
+
+  private final CharSequence text;
+
+  private final long deadline;
+
+  private int countdown = CHECK_INTERVAL;
+
+  /**
+   * @param text
+   * @param deadline the value of {@link System#nanoTime()} to give up at
+   */
+  DeadlineCharSequence(CharSequence text, long deadline) {
+    this.text = text;
+    this.deadline = deadline;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int length() {
+    return text.length();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public char charAt(int index) {
+    if (--countdown == 0) {
+      countdown = CHECK_INTERVAL;
+
+      if (System.nanoTime() - deadline > 0) {
+        throw new DeadlineExceededException();
+      }
+    }
+
+    return text.charAt(index);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return text.subSequence(start, end);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return text.toString();
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+
+/**
+ * Counts the problems found while parsing a book, so that they are reported once per book instead
+ * of every time they occur.
+ *
+ * <p>Each problem is counted by its kind and the tag or property it was found in, keeping the first
+ * few line numbers. Every problem found in a line is counted here, including the lines given up on
+ * at their deadline, so that a broken file logs a single summary. The summary is logged as a
+ * warning, and the details only if debug logging is enabled.
+ *
+ * <p>The problems found in a part of the book can be saved along with what was parsed from it, and
+ * read back when the part is reused, so that the book is reported the same either way.
+ *
+ * @author dacci
+ */
+final class Diagnostics {
+
+  /** The number of line numbers kept for each problem. */
+  private static final int MAX_LINES = 10;
+
+  /** The kinds of problems. */
+  enum Kind {
+    UNKNOWN_BLOCK_TAG("unknown block tag"),
+
+    UNSUPPORTED_INDENTATION("unsupported indentation"),
+
+    DISCARDED_ANNOTATION("discarded annotation"),
+
+    DISCARDED_TAG("discarded tag"),
+
+    UNKNOWN_CHAPTER_PROPERTY("unknown chapter property"),
+
+    UNKNOWN_BOOK_PROPERTY("unknown book property"),
+
+    /** A line given up on when it took too long to interpret, by what was done with it. */
+    DEADLINE_EXCEEDED("line took too long");
+
+    private final String description;
+
+    /**
+     * @param description
+     */
+    Kind(String description) {
+      this.description = description;
+    }
+  }
+
+  /** The occurrences of a problem. */
+  private static final class Entry {
+
+    private int count;
+
+    private final int[] lines = new int[MAX_LINES];
+
+    /**
+     * @param line
+     */
+    void add(int line) {
+      if (count < MAX_LINES) {
+        lines[count] = line;
+      }
+      ++count;
+    }
+
+    /**
+     * @param other
+     */
+    void addAll(Entry other) {
+      for (int i = 0, l = Math.min(other.count, MAX_LINES - count); i < l; ++i) {
+        lines[count + i] = other.lines[i];
+      }
+      count += other.count;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+      String lines = Arrays.toString(Arrays.copyOf(this.lines, Math.min(count, MAX_LINES)));
+      return count + " on lines " + lines.substring(1, lines.length() - 1);
+    }
+  }
+
+  /** The entries of each kind by the tag or property, created as problems are found. */
+  private Map<Kind, Map<String, Entry>> entries;
+
+  /**
+   * @param kind
+   * @param subject the tag or property the problem was found in
+   * @param line
+   */
+  void add(Kind kind, String subject, int line) {
+    getEntry(kind, subject).add(line);
+  }
+
+  /**
+   * Adds the problems found in a part of the book, such as a line interpreted separately.
+   *
+   * @param other
+   */
+  void addAll(Diagnostics other) {
+    if (other.entries == null) {
+      return;
+    }
+
+    for (Map.Entry<Kind, Map<String, Entry>> kind : other.entries.entrySet()) {
+      for (Map.Entry<String, Entry> entry : kind.getValue().entrySet()) {
+        getEntry(kind.getKey(), entry.getKey()).addAll(entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Adds the problems written by {@link #write(DataOutput, int)}.
+   *
+   * @param in
+   * @param base the line number the line numbers read are relative to
+   * @throws IOException
+   */
+  void read(DataInput in, int base) throws IOException {
+    Kind[] kinds = Kind.values();
+    for (int i = in.readInt(); i > 0; --i) {
+      Kind kind = kinds[in.readInt()];
+      for (int j = in.readInt(); j > 0; --j) {
+        byte[] subject = new byte[in.readInt()];
+        in.readFully(subject);
+
+        Entry entry = new Entry();
+        entry.count = in.readInt();
+        for (int k = 0, l = Math.min(entry.count, MAX_LINES); k < l; ++k) {
+          entry.lines[k] = base + in.readInt();
+        }
+
+        getEntry(kind, new String(subject, StandardCharsets.UTF_8)).addAll(entry);
+      }
+    }
+  }
+
+  /**
+   * @param out
+   * @param base the line number to write the line numbers relative to, so that they can be read
+   *     back for a part of the book that has moved
+   * @throws IOException
+   */
+  void write(DataOutput out, int base) throws IOException {
+    if (entries == null) {
+      out.writeInt(0);
+      return;
+    }
+
+    out.writeInt(entries.size());
+    for (Map.Entry<Kind, Map<String, Entry>> kind : entries.entrySet()) {
+      out.writeInt(kind.getKey().ordinal());
+      out.writeInt(kind.getValue().size());
+      for (Map.Entry<String, Entry> entry : kind.getValue().entrySet()) {
+        byte[] subject = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(subject.length);
+        out.write(subject);
+
+        Entry value = entry.getValue();
+        out.writeInt(value.count);
+        for (int i = 0, l = Math.min(value.count, MAX_LINES); i < l; ++i) {
+          out.writeInt(value.lines[i] - base);
+        }
+      }
+    }
+  }
+
+  /** Forgets the problems found so far. */
+  void clear() {
+    entries = null;
+  }
+
+  /**
+   * @param log
+   * @param source the file the problems were found in
+   */
+  void report(Logger log, Path source) {
+    if (entries == null) {
+      return;
+    }
+
+    if (log.isWarnEnabled()) {
+      StringBuilder summary = new StringBuilder();
+      for (Map.Entry<Kind, Map<String, Entry>> kind : entries.entrySet()) {
+        int count = 0;
+        for (Entry entry : kind.getValue().values()) {
+          count += entry.count;
+        }
+
+        if (summary.length() > 0) {
+          summary.append(", ");
+        }
+        summary.append(kind.getKey().description).append(": ").append(count);
+        summary.append(" (").append(kind.getValue().size()).append(" distinct)");
+      }
+
+      log.warn("Problems in {}: {}", source, summary);
+    }
+
+    if (log.isDebugEnabled()) {
+      for (Map.Entry<Kind, Map<String, Entry>> kind : entries.entrySet()) {
+        for (Map.Entry<String, Entry> entry : kind.getValue().entrySet()) {
+          log.debug("{} {}: {}", kind.getKey().description, entry.getKey(), entry.getValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * @param kind
+   * @param subject
+   * @return the entry of the problem, created if not found yet.
+   */
+  private Entry getEntry(Kind kind, String subject) {
+    if (entries == null) {
+      entries = new EnumMap<>(Kind.class);
+    }
+
+    Map<String, Entry> subjects = entries.get(kind);
+    if (subjects == null) {
+      subjects = new LinkedHashMap<>();
+      entries.put(kind, subjects);
+    }
+
+    Entry entry = subjects.get(subject);
+    if (entry == null) {
+      entry = new Entry();
+      subjects.put(subject, entry);
+    }
+
+    return entry;
+  }
+}
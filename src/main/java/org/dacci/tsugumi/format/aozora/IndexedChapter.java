@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+import java.util.Collections;
+
+import org.dacci.tsugumi.doc.BookProperty;
+import org.dacci.tsugumi.doc.Chapter;
+import org.dacci.tsugumi.doc.ChapterLoadException;
+import org.dacci.tsugumi.format.BookBuilder;
+import org.dacci.tsugumi.format.ParseException;
+
+/**
+ * A chapter whose content is parsed from the source file when it is accessed for the first time.
+ *
+ * @author dacci
+ */
+final class IndexedChapter extends Chapter {
+
+  private final SourceFile.Source source;
+
+  private final SourceEncoding encoding;
+
+  private final ChapterIndex.Entry entry;
+
+  /**
+   * @param source
+   * @param encoding
+   * @param entry
+   */
+  IndexedChapter(SourceFile.Source source, SourceEncoding encoding, ChapterIndex.Entry entry) {
+    super(
+        entry.title == null
+            ? Collections.<BookProperty, String>emptyMap()
+            : Collections.singletonMap(BookProperty.Title, entry.title));
+
+    this.source = source;
+    this.encoding = encoding;
+    this.entry = entry;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected Chapter load() {
+    BookBuilder builder = new BookBuilder();
+    try {
+      AozoraFormat.parseChapter(source, encoding, entry, builder);
+    } catch (ParseException e) {
+      throw new ChapterLoadException(e);
+    }
+
+    return builder.getBook().chapters().get(0);
+  }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads a source file line by line.
+ *
+ * @author dacci
+ */
+interface LineReader extends Closeable {
+
+  /**
+   * @return the next line without the terminator, or {@code null} if the end of the file has been
+   *     reached. The line may be valid only until the next call.
+   * @throws IOException
+   */
+  CharSequence readLine() throws IOException;
+
+  /** Marks the start of the next line. */
+  void mark();
+
+  /** Rewinds to the line marked last. */
+  void reset();
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Reads lines from a memory-mapped file.
+ *
+ * <p>The file is mapped in chunks and decoded into a single reusable buffer. Each line is returned
+ * as a view into that buffer, which stays valid only until the next call to {@link #readLine()}.
+ * Lines are terminated the same way as {@link java.io.BufferedReader#readLine()} does.
+ *
+ * @author dacci
+ */
+final class MappedLineReader implements LineReader {
+
+  private static final int MAPPING_SIZE = 4 << 20;
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final SourceFile file;
+
+  private final long size;
+
+  private final CharsetDecoder decoder;
+
+  private long offset;
+
+  private ByteBuffer bytes;
+
+  private CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+  private boolean flushing;
+
+  private boolean endOfInput;
+
+  private int mark = -1;
+
+  /**
+   * Reads only the lines between {@code start} and {@code end}, both of which must be the start of
+   * a line or the end of the file.
+   *
+   * @param file the file to read, which is closed with this reader
+   * @param charset
+   * @param start
+   * @param end
+   * @throws IOException
+   */
+  MappedLineReader(SourceFile file, Charset charset, long start, long end) throws IOException {
+    this.file = file;
+
+    try {
+      size = Math.min(file.size(), end);
+      offset = start;
+      bytes = file.map(start, Math.min(size - start, MAPPING_SIZE));
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+
+    decoder = charset.newDecoder();
+    chars.flip();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CharSequence readLine() throws IOException {
+    int scanned = 0;
+
+    while (true) {
+      int start = chars.position();
+      int limit = chars.limit();
+
+      for (int i = start + scanned; i < limit; ++i) {
+        char c = chars.get(i);
+        if (c != '\n' && c != '\r') {
+          continue;
+        }
+
+        if (c == '\r' && i + 1 == limit && !endOfInput) {
+          // need to know whether LF follows
+          break;
+        }
+
+        CharSequence line = chars.subSequence(0, i - start);
+
+        if (c == '\r' && i + 1 < limit && chars.get(i + 1) == '\n') {
+          ++i;
+        }
+        chars.position(i + 1);
+
+        return line;
+      }
+
+      if (endOfInput) {
+        if (!chars.hasRemaining()) {
+          return null;
+        }
+
+        CharSequence line = chars.slice();
+        chars.position(limit);
+
+        return line;
+      }
+
+      scanned = limit - start;
+      if (scanned > 0 && chars.get(limit - 1) == '\r') {
+        --scanned;
+      }
+
+      fill();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void mark() {
+    mark = chars.position();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void reset() {
+    if (mark < 0) {
+      throw new IllegalStateException("not marked");
+    }
+
+    chars.position(mark);
+    mark = -1;
+  }
+
+  /**
+   * Decodes more characters, preserving the unread (or marked) ones.
+   *
+   * @throws IOException
+   */
+  private void fill() throws IOException {
+    int keep = mark < 0 ? chars.position() : mark;
+    int position = chars.position() - keep;
+    if (mark >= 0) {
+      mark = 0;
+    }
+
+    chars.position(keep);
+    if (chars.remaining() > chars.capacity() / 2) {
+      // a line too long for the buffer
+      CharBuffer buffer = CharBuffer.allocate(chars.capacity() * 2);
+      buffer.put(chars);
+      chars = buffer;
+    } else {
+      chars.compact();
+    }
+
+    while (chars.hasRemaining()) {
+      boolean last = offset + bytes.limit() == size;
+
+      if (!flushing) {
+        CoderResult result = decoder.decode(bytes, chars, last);
+        if (result.isError()) {
+          result.throwException();
+        }
+
+        if (result.isOverflow()) {
+          break;
+        }
+      }
+
+      if (last) {
+        flushing = true;
+        endOfInput = decoder.flush(chars).isUnderflow();
+        break;
+      }
+
+      offset += bytes.position();
+      bytes = file.map(offset, Math.min(size - offset, MAPPING_SIZE));
+    }
+
+    chars.flip();
+    chars.position(position);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
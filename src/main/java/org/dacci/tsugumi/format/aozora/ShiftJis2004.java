@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Decode-only Shift_JIS-2004 (JIS X 0213) charset driven by lookup tables.
+ *
+ * <p>The tables are built once from the mapping of the JDK's {@code x-SJIS_0213} charset, so the
+ * decoded text is identical to it, including the characters JIS X 0213 maps to a base character
+ * followed by a combining mark.
+ *
+ * @author dacci
+ */
+final class ShiftJis2004 extends Charset {
+
+  static final ShiftJis2004 INSTANCE = new ShiftJis2004();
+
+  private static final String SOURCE_CHARSET_NAME = "x-SJIS_0213";
+
+  /** Marks a byte starting a double-byte sequence in {@link #SINGLE_BYTE}. */
+  private static final char LEAD = '\uFFFF';
+
+  private static final char[] SINGLE_BYTE = new char[0x100];
+
+  /**
+   * Offset of the row in {@link #DOUBLE_BYTE} for each lead byte. Bytes that never start a valid
+   * sequence share the first row, which is left unmapped.
+   */
+  private static final int[] LEAD_ROW = new int[0x100];
+
+  /**
+   * Indexed by {@link #LEAD_ROW} plus the trail byte. Zero for unmapped sequences, the code point
+   * for a single character, or the bitwise complement of an index into {@link #COMBINING} for a
+   * character followed by a combining mark.
+   */
+  private static final int[] DOUBLE_BYTE = new int[61 * 0x100];
+
+  private static final char[][] COMBINING;
+
+  static {
+    CharsetDecoder decoder =
+        Charset.forName(SOURCE_CHARSET_NAME)
+            .newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+    char[][] combining = new char[64][];
+    int combiningCount = 0;
+    int row = 0;
+
+    for (int b1 = 0; b1 < 0x100; ++b1) {
+      char[] chars = decode(decoder, (byte) b1);
+      if (chars != null && chars.length == 1) {
+        SINGLE_BYTE[b1] = chars[0];
+        continue;
+      }
+
+      SINGLE_BYTE[b1] = LEAD;
+      if (!(0x81 <= b1 && b1 <= 0x9F || 0xE0 <= b1 && b1 <= 0xFC)) {
+        continue;
+      }
+
+      row += 0x100;
+      LEAD_ROW[b1] = row;
+
+      for (int b2 = 0x40; b2 <= 0xFC; ++b2) {
+        chars = decode(decoder, (byte) b1, (byte) b2);
+        if (chars == null) {
+          continue;
+        }
+
+        int entry;
+        if (chars.length == 1) {
+          entry = chars[0];
+        } else if (Character.isSurrogatePair(chars[0], chars[1])) {
+          entry = Character.toCodePoint(chars[0], chars[1]);
+        } else {
+          if (combiningCount == combining.length) {
+            combining = Arrays.copyOf(combining, combiningCount * 2);
+          }
+          combining[combiningCount] = chars;
+          entry = ~combiningCount++;
+        }
+
+        DOUBLE_BYTE[row + b2] = entry;
+      }
+    }
+
+    COMBINING = Arrays.copyOf(combining, combiningCount);
+  }
+
+  /**
+   * @param decoder
+   * @param bytes
+   * @return the decoded characters, or {@code null} if not mapped.
+   */
+  private static char[] decode(CharsetDecoder decoder, byte... bytes) {
+    try {
+      CharBuffer chars = decoder.reset().decode(ByteBuffer.wrap(bytes));
+      return chars.length() > 0 && chars.length() <= 2 ? chars.toString().toCharArray() : null;
+    } catch (CharacterCodingException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param b1 the first byte
+   * @param b2 the second byte
+   * @return the characters of the double-byte sequence as described in {@link #DOUBLE_BYTE}.
+   */
+  static int lookup(int b1, int b2) {
+    return DOUBLE_BYTE[LEAD_ROW[b1] + b2];
+  }
+
+  /**
+   * @param b2 the trail byte of an unmapped double-byte sequence
+   * @return the length of the sequence, the same as the JDK decoder reports: the trail byte is left
+   *     for the next character if it can stand alone.
+   */
+  private static int unmappableLength(int b2) {
+    return SINGLE_BYTE[b2] == LEAD ? 2 : 1;
+  }
+
+  /**
+   * @param builder
+   * @param entry a mapped entry of {@link #DOUBLE_BYTE}
+   * @return {@code builder}
+   */
+  static StringBuilder append(StringBuilder builder, int entry) {
+    if (entry < 0) {
+      return builder.append(COMBINING[~entry]);
+    }
+
+    return builder.appendCodePoint(entry);
+  }
+
+  private ShiftJis2004() {
+    super("x-tsugumi-SJIS_0213", null);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean contains(Charset cs) {
+    return cs instanceof ShiftJis2004;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CharsetDecoder newDecoder() {
+    return new Decoder(this);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean canEncode() {
+    return false;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CharsetEncoder newEncoder() {
+    throw new UnsupportedOperationException();
+  }
+
+  /** Decodes through the tables of the outer class. */
+  private static final class Decoder extends CharsetDecoder {
+
+    /**
+     * @param cs
+     */
+    Decoder(Charset cs) {
+      super(cs, 0.5f, 1.0f);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected CoderResult decodeLoop(ByteBuffer in, CharBuffer out) {
+      if (out.hasArray()) {
+        if (in.hasArray()) {
+          return decodeArrayLoop(in, out);
+        }
+
+        return decodeDirectLoop(in, out);
+      }
+
+      return decodeBufferLoop(in, out);
+    }
+
+    /**
+     * @param in
+     * @param out
+     * @return
+     */
+    private CoderResult decodeArrayLoop(ByteBuffer in, CharBuffer out) {
+      byte[] sa = in.array();
+      int sp = in.arrayOffset() + in.position();
+      int sl = in.arrayOffset() + in.limit();
+      char[] da = out.array();
+      int dp = out.arrayOffset() + out.position();
+      int dl = out.arrayOffset() + out.limit();
+
+      try {
+        while (sp < sl) {
+          int b1 = sa[sp] & 0xFF;
+          char c = SINGLE_BYTE[b1];
+
+          // ASCII and half-width katakana
+          if (c != LEAD) {
+            if (dp == dl) {
+              return CoderResult.OVERFLOW;
+            }
+
+            da[dp++] = c;
+            ++sp;
+            continue;
+          }
+
+          if (sp + 1 == sl) {
+            return CoderResult.UNDERFLOW;
+          }
+
+          int b2 = sa[sp + 1] & 0xFF;
+          int entry = lookup(b1, b2);
+          if (0 < entry && entry < Character.MIN_SUPPLEMENTARY_CODE_POINT && dp < dl) {
+            da[dp++] = (char) entry;
+          } else if (entry == 0) {
+            return CoderResult.unmappableForLength(unmappableLength(b2));
+          } else {
+            int next = put(entry, da, dp, dl);
+            if (next < 0) {
+              return CoderResult.OVERFLOW;
+            }
+
+            dp = next;
+          }
+
+          sp += 2;
+        }
+
+        return CoderResult.UNDERFLOW;
+      } finally {
+        in.position(sp - in.arrayOffset());
+        out.position(dp - out.arrayOffset());
+      }
+    }
+
+    /**
+     * Same as {@link #decodeArrayLoop(ByteBuffer, CharBuffer)} but reads bytes from a buffer
+     * without an accessible array, such as a mapped file.
+     *
+     * @param in
+     * @param out
+     * @return
+     */
+    private CoderResult decodeDirectLoop(ByteBuffer in, CharBuffer out) {
+      int sp = in.position();
+      int sl = in.limit();
+      char[] da = out.array();
+      int dp = out.arrayOffset() + out.position();
+      int dl = out.arrayOffset() + out.limit();
+
+      try {
+        while (sp < sl) {
+          int b1 = in.get(sp) & 0xFF;
+          char c = SINGLE_BYTE[b1];
+
+          if (c != LEAD) {
+            if (dp == dl) {
+              return CoderResult.OVERFLOW;
+            }
+
+            da[dp++] = c;
+            ++sp;
+            continue;
+          }
+
+          if (sp + 1 == sl) {
+            return CoderResult.UNDERFLOW;
+          }
+
+          int b2 = in.get(sp + 1) & 0xFF;
+          int entry = lookup(b1, b2);
+          if (0 < entry && entry < Character.MIN_SUPPLEMENTARY_CODE_POINT && dp < dl) {
+            da[dp++] = (char) entry;
+          } else if (entry == 0) {
+            return CoderResult.unmappableForLength(unmappableLength(b2));
+          } else {
+            int next = put(entry, da, dp, dl);
+            if (next < 0) {
+              return CoderResult.OVERFLOW;
+            }
+
+            dp = next;
+          }
+
+          sp += 2;
+        }
+
+        return CoderResult.UNDERFLOW;
+      } finally {
+        in.position(sp);
+        out.position(dp - out.arrayOffset());
+      }
+    }
+
+    /**
+     * @param entry a mapped entry of {@link #DOUBLE_BYTE}
+     * @param da
+     * @param dp
+     * @param dl
+     * @return the new position in {@code da}, or -1 if there is not enough room.
+     */
+    private static int put(int entry, char[] da, int dp, int dl) {
+      if (entry < 0) {
+        if (dl - dp < 2) {
+          return -1;
+        }
+
+        char[] chars = COMBINING[~entry];
+        da[dp++] = chars[0];
+        da[dp++] = chars[1];
+      } else if (entry < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+        if (dp == dl) {
+          return -1;
+        }
+
+        da[dp++] = (char) entry;
+      } else {
+        if (dl - dp < 2) {
+          return -1;
+        }
+
+        da[dp++] = Character.highSurrogate(entry);
+        da[dp++] = Character.lowSurrogate(entry);
+      }
+
+      return dp;
+    }
+
+    /**
+     * @param in
+     * @param out
+     * @return
+     */
+    private CoderResult decodeBufferLoop(ByteBuffer in, CharBuffer out) {
+      int sp = in.position();
+
+      try {
+        while (in.hasRemaining()) {
+          int b1 = in.get() & 0xFF;
+          char c = SINGLE_BYTE[b1];
+
+          if (c != LEAD) {
+            if (!out.hasRemaining()) {
+              return CoderResult.OVERFLOW;
+            }
+
+            out.put(c);
+            ++sp;
+            continue;
+          }
+
+          if (!in.hasRemaining()) {
+            return CoderResult.UNDERFLOW;
+          }
+
+          int b2 = in.get() & 0xFF;
+          int entry = lookup(b1, b2);
+          if (entry == 0) {
+            return CoderResult.unmappableForLength(unmappableLength(b2));
+          }
+
+          if (entry < 0) {
+            if (out.remaining() < 2) {
+              return CoderResult.OVERFLOW;
+            }
+
+            out.put(COMBINING[~entry]);
+          } else if (entry < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            if (!out.hasRemaining()) {
+              return CoderResult.OVERFLOW;
+            }
+
+            out.put((char) entry);
+          } else {
+            if (out.remaining() < 2) {
+              return CoderResult.OVERFLOW;
+            }
+
+            out.put(Character.highSurrogate(entry));
+            out.put(Character.lowSurrogate(entry));
+          }
+
+          sp += 2;
+        }
+
+        return CoderResult.UNDERFLOW;
+      } finally {
+        in.position(sp);
+      }
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The encodings a source file can be written in.
+ *
+ * <p>A file is read as UTF-8 if it starts with the byte order mark, or if the beginning of it is
+ * well-formed UTF-8 containing at least one non-ASCII character. Otherwise it is read as Shift_JIS,
+ * in which Aozora Bunko distributes its files.
+ *
+ * @author dacci
+ */
+enum SourceEncoding {
+  SHIFT_JIS(ShiftJis2004.INSTANCE, Charset.forName("x-SJIS_0213"), 0),
+
+  UTF_8(Utf8.INSTANCE, StandardCharsets.UTF_8, 0),
+
+  UTF_8_WITH_BOM(Utf8.INSTANCE, StandardCharsets.UTF_8, 3);
+
+  /** The number of bytes scanned to tell UTF-8 from Shift_JIS. */
+  private static final int SCAN_SIZE = 64 << 10;
+
+  private static final byte[] BYTE_ORDER_MARK = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+  /** The charset to decode the file with. */
+  final Charset charset;
+
+  /** The offset of the first line, past the byte order mark if any. */
+  final long offset;
+
+  /** "［＃" in this encoding, which every block tag and property starts with. */
+  final byte[] tagPrefix;
+
+  /** "［＃本文終わり］" in this encoding, the line ending the main text. */
+  final byte[] endOfMainText;
+
+  /**
+   * @param charset
+   * @param encoder the charset to encode the patterns with, as {@code charset} only decodes
+   * @param offset
+   */
+  SourceEncoding(Charset charset, Charset encoder, long offset) {
+    this.charset = charset;
+    this.offset = offset;
+    tagPrefix = "［＃".getBytes(encoder);
+    endOfMainText = "［＃本文終わり］".getBytes(encoder);
+  }
+
+  /**
+   * @param path
+   * @return the encoding {@code path} is written in.
+   * @throws IOException
+   */
+  static SourceEncoding detect(Path path) throws IOException {
+    ByteBuffer bytes = ByteBuffer.allocate(SCAN_SIZE);
+
+    // only the beginning of a file in an archive is inflated
+    try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+      while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+        // fill the buffer
+      }
+    }
+
+    bytes.flip();
+
+    return detect(bytes);
+  }
+
+  /**
+   * @param bytes the beginning of a file
+   * @return the encoding the file is written in.
+   */
+  private static SourceEncoding detect(ByteBuffer bytes) {
+    if (bytes.remaining() >= BYTE_ORDER_MARK.length
+        && bytes.get(0) == BYTE_ORDER_MARK[0]
+        && bytes.get(1) == BYTE_ORDER_MARK[1]
+        && bytes.get(2) == BYTE_ORDER_MARK[2]) {
+      return UTF_8_WITH_BOM;
+    }
+
+    byte[] array = bytes.array();
+    int limit = bytes.limit();
+    boolean multiByte = false;
+
+    for (int i = 0; i < limit; ) {
+      int b1 = array[i] & 0xFF;
+      if (b1 < 0x80) {
+        ++i;
+        continue;
+      }
+
+      int c =
+          Utf8.decodeSequence(
+              b1,
+              Utf8.byteAt(array, i + 1, limit),
+              Utf8.byteAt(array, i + 2, limit),
+              Utf8.byteAt(array, i + 3, limit));
+      if (c == Utf8.UNDERFLOW) {
+        // cut by the end of the scanned bytes
+        break;
+      } else if (c < 0) {
+        return SHIFT_JIS;
+      }
+
+      multiByte = true;
+      i += Utf8.sequenceLength(b1);
+    }
+
+    return multiByte ? UTF_8 : SHIFT_JIS;
+  }
+}
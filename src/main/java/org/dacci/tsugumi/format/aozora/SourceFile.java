@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The bytes of a source file, which can be read at any position.
+ *
+ * <p>A regular file is mapped into memory piece by piece as requested. A file in a ZIP archive, in
+ * which Aozora Bunko distributes its works, cannot be mapped, so it is streamed out of the archive
+ * into memory once, without being extracted to the disk, while its {@link Source} is open.
+ *
+ * @author dacci
+ */
+abstract class SourceFile implements Closeable {
+
+  private static final String ARCHIVE_SUFFIX = ".zip";
+
+  private static final String TEXT_SUFFIX = ".txt";
+
+  /**
+   * The text of a book, which can be opened any number of times until the source is closed.
+   *
+   * <p>The text of a regular file is mapped each time it is opened. That in a ZIP archive is read
+   * out of the archive once, and the archive stays open until the source is closed, since the
+   * images the text refers to are read from it.
+   */
+  static class Source implements Closeable {
+
+    private final Path path;
+
+    /**
+     * @param path
+     */
+    private Source(Path path) {
+      this.path = path;
+    }
+
+    /**
+     * @return the text file, against which the images are resolved.
+     */
+    Path path() {
+      return path;
+    }
+
+    /**
+     * @return the text file, opened.
+     * @throws IOException
+     */
+    SourceFile open() throws IOException {
+      return new MappedFile(path);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+      // nothing to release
+    }
+  }
+
+  /** The text in a ZIP archive. */
+  private static final class ArchivedSource extends Source {
+
+    private final FileSystem fileSystem;
+
+    /** The bytes of the text, or {@code null} until read. */
+    private byte[] bytes;
+
+    /**
+     * @param path
+     * @param fileSystem the archive
+     */
+    ArchivedSource(Path path, FileSystem fileSystem) {
+      super(path);
+      this.fileSystem = fileSystem;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    synchronized SourceFile open() throws IOException {
+      if (bytes == null) {
+        bytes = Files.readAllBytes(path());
+      }
+
+      return new LoadedFile(bytes);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+      synchronized (this) {
+        bytes = null;
+      }
+
+      fileSystem.close();
+    }
+  }
+
+  /** A regular file. */
+  private static final class MappedFile extends SourceFile {
+
+    private final FileChannel channel;
+
+    /**
+     * @param path
+     * @throws IOException
+     */
+    MappedFile(Path path) throws IOException {
+      channel = FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    long size() throws IOException {
+      return channel.size();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    ByteBuffer map(long position, long size) throws IOException {
+      return channel.map(MapMode.READ_ONLY, position, size);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    int read(ByteBuffer buffer, long position) throws IOException {
+      return channel.read(buffer, position);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /** A file read into memory. */
+  private static final class LoadedFile extends SourceFile {
+
+    private final byte[] bytes;
+
+    /**
+     * @param bytes
+     */
+    LoadedFile(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    long size() {
+      return bytes.length;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    ByteBuffer map(long position, long size) {
+      if (position < 0 || size < 0 || position + size > bytes.length) {
+        throw new IllegalArgumentException();
+      }
+
+      return ByteBuffer.wrap(bytes, (int) position, (int) size).slice();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    int read(ByteBuffer buffer, long position) {
+      if (position >= bytes.length) {
+        return -1;
+      }
+
+      int length = (int) Math.min(buffer.remaining(), bytes.length - position);
+      buffer.put(bytes, (int) position, length);
+
+      return length;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() {
+      // nothing to release
+    }
+  }
+
+  /**
+   * Opens {@code path} as the source of a book, which must be closed once the text and the images
+   * are no longer read.
+   *
+   * @param path a text file, or a ZIP archive containing one as Aozora Bunko distributes
+   * @return the text file, or the first one in the archive.
+   * @throws IOException
+   */
+  static Source openSource(Path path) throws IOException {
+    if (!path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(ARCHIVE_SUFFIX)) {
+      return new Source(path);
+    }
+
+    // opened by path, the archive is not shared with other parses through the provider
+    FileSystem fileSystem = FileSystems.newFileSystem(path, (ClassLoader) null);
+    try {
+      return new ArchivedSource(findText(path, fileSystem), fileSystem);
+    } catch (IOException | RuntimeException e) {
+      fileSystem.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @param path
+   * @param fileSystem the file system of the archive at {@code path}
+   * @return the first text file in the archive.
+   * @throws IOException
+   */
+  private static Path findText(Path path, FileSystem fileSystem) throws IOException {
+    final List<Path> texts = new ArrayList<>();
+    for (Path root : fileSystem.getRootDirectories()) {
+      Files.walkFileTree(
+          root,
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+              String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+              if (attrs.isRegularFile() && name.endsWith(TEXT_SUFFIX)) {
+                texts.add(file);
+              }
+
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    }
+
+    if (texts.isEmpty()) {
+      throw new NoSuchFileException(path.toString(), null, "No text file in the archive");
+    }
+
+    Collections.sort(texts);
+
+    return texts.get(0);
+  }
+
+  /**
+   * @param path
+   * @return the archive containing {@code path}, or {@code path} itself if it is a regular file.
+   *     The files derived from {@code path} are saved next to it.
+   */
+  static Path toLocalPath(Path path) {
+    if (path.getFileSystem() == FileSystems.getDefault()) {
+      return path;
+    }
+
+    // jar:file:///path/to/archive.zip!/entry
+    URI uri = path.toUri();
+    String spec = uri.getRawSchemeSpecificPart();
+    int separator = spec.indexOf("!/");
+    if (!"jar".equals(uri.getScheme()) || separator == -1) {
+      throw new IllegalArgumentException("Unsupported path: " + uri);
+    }
+
+    return Paths.get(URI.create(spec.substring(0, separator)));
+  }
+
+  /** Writes a file derived from the source file. */
+  interface Writer {
+
+    /**
+     * @param out
+     * @throws IOException
+     */
+    void write(OutputStream out) throws IOException;
+  }
+
+  /**
+   * Writes a file to a temporary file next to it and moves it in place, so that the file is never
+   * seen partly written, even if another process is reading it or the write fails.
+   *
+   * @param path
+   * @param writer
+   * @throws IOException
+   */
+  static void save(Path path, Writer writer) throws IOException {
+    Path temp =
+        Files.createTempFile(
+            path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+
+    try {
+      try (OutputStream out = Files.newOutputStream(temp)) {
+        writer.write(out);
+      }
+
+      try {
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(temp);
+      throw e;
+    }
+  }
+
+  /**
+   * @return the size of the file.
+   * @throws IOException
+   */
+  abstract long size() throws IOException;
+
+  /**
+   * @param position
+   * @param size
+   * @return the bytes of the region, which must not be modified.
+   * @throws IOException
+   */
+  abstract ByteBuffer map(long position, long size) throws IOException;
+
+  /**
+   * Reads bytes like {@link FileChannel#read(ByteBuffer, long)} does.
+   *
+   * @param buffer
+   * @param position
+   * @return the number of bytes read, or -1 if {@code position} is at or past the end of the file.
+   * @throws IOException
+   */
+  abstract int read(ByteBuffer buffer, long position) throws IOException;
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dacci.tsugumi.Util;
+import org.dacci.tsugumi.doc.EndMarginStyle;
+import org.dacci.tsugumi.doc.FontSizeStyle;
+import org.dacci.tsugumi.doc.SimpleStyle;
+import org.dacci.tsugumi.doc.StartMarginStyle;
+import org.dacci.tsugumi.doc.Style;
+import org.dacci.tsugumi.doc.WidthStyle;
+
+/**
+ * The style a tag stands for, along with the type of the tag, which its end tag is matched by.
+ *
+ * <p>Tags are looked up in tables built once, and the results are cached by the tag, so a tag seen
+ * before resolves without allocation. The results, including their styles, are shared and must not
+ * be modified.
+ *
+ * @author dacci
+ */
+final class TagStyle {
+
+  /** The kinds of tags recognized by their last three characters. */
+  private enum Suffix {
+    START_MARGIN,
+    END_MARGIN,
+    WIDTH,
+    FONT_SIZE,
+    HEADING,
+  }
+
+  private static final int SUFFIX_LENGTH = 3;
+
+  private static final int MAX_CACHE_SIZE = 1024;
+
+  private static final Map<String, Suffix> SUFFIXES = new HashMap<>();
+
+  private static final Map<String, SimpleStyle> SIMPLE_STYLES = new HashMap<>();
+
+  private static final Map<String, TagStyle> CACHE = new ConcurrentHashMap<>();
+
+  static {
+    SUFFIXES.put("字下げ", Suffix.START_MARGIN);
+    SUFFIXES.put("字上げ", Suffix.END_MARGIN);
+    SUFFIXES.put("字詰め", Suffix.WIDTH);
+    SUFFIXES.put("な文字", Suffix.FONT_SIZE);
+    SUFFIXES.put("見出し", Suffix.HEADING);
+
+    SIMPLE_STYLES.put("太字", SimpleStyle.Bold);
+    SIMPLE_STYLES.put("斜体", SimpleStyle.Italic);
+    SIMPLE_STYLES.put("地付き", SimpleStyle.AlignEnd);
+    SIMPLE_STYLES.put("罫囲み", SimpleStyle.Ruled);
+    SIMPLE_STYLES.put("罫囲い", SimpleStyle.Ruled);
+    SIMPLE_STYLES.put("横組み", SimpleStyle.Horizontal);
+    SIMPLE_STYLES.put("キャプション", SimpleStyle.Caption);
+    SIMPLE_STYLES.put("傍点", SimpleStyle.Sesame);
+    SIMPLE_STYLES.put("白ゴマ傍点", SimpleStyle.OpenSesame);
+    SIMPLE_STYLES.put("丸傍点", SimpleStyle.Circle);
+    SIMPLE_STYLES.put("白丸傍点", SimpleStyle.CircleOpen);
+    SIMPLE_STYLES.put("黒三角傍点", SimpleStyle.Triangle);
+    SIMPLE_STYLES.put("白三角傍点", SimpleStyle.TriangleOpen);
+    SIMPLE_STYLES.put("二重丸傍点", SimpleStyle.DoubleCircleOpen);
+    SIMPLE_STYLES.put("蛇の目傍点", SimpleStyle.DoubleCircle);
+    SIMPLE_STYLES.put("ばつ傍点", SimpleStyle.Saltire);
+    SIMPLE_STYLES.put("傍線", SimpleStyle.Lined);
+    SIMPLE_STYLES.put("二重傍線", SimpleStyle.DoubleLined);
+    SIMPLE_STYLES.put("鎖線", SimpleStyle.Dotted);
+    SIMPLE_STYLES.put("破線", SimpleStyle.Dashed);
+    SIMPLE_STYLES.put("波線", SimpleStyle.WaveDashed);
+    SIMPLE_STYLES.put("縦中横", SimpleStyle.Rotated);
+    SIMPLE_STYLES.put("行右小書き", SimpleStyle.Superscript);
+    SIMPLE_STYLES.put("上付き小文字", SimpleStyle.Superscript);
+    SIMPLE_STYLES.put("行左小書き", SimpleStyle.Subscript);
+    SIMPLE_STYLES.put("下付き小文字", SimpleStyle.Subscript);
+    SIMPLE_STYLES.put("割り注", SimpleStyle.Warichu);
+    SIMPLE_STYLES.put("ゴシック体", SimpleStyle.Gothic);
+  }
+
+  /** The type of the tag, which its end tag names. */
+  final String type;
+
+  /** The style, or {@code null} if the tag is unknown. */
+  final Style style;
+
+  /** True if only a part of the tag is supported. */
+  final boolean partial;
+
+  /**
+   * @param type
+   * @param style
+   * @param partial
+   */
+  private TagStyle(String type, Style style, boolean partial) {
+    this.type = type;
+    this.style = style;
+    this.partial = partial;
+  }
+
+  /**
+   * @param tag the text of the tag between {@code ［＃} and {@code ］}
+   * @return the style {@code tag} stands for. The style is {@code null} if the tag is unknown.
+   * @throws RuntimeException if the tag is malformed
+   */
+  static TagStyle of(String tag) {
+    TagStyle result = CACHE.get(tag);
+    if (result == null) {
+      result = parse(tag);
+
+      if (CACHE.size() >= MAX_CACHE_SIZE) {
+        // most books use a few dozen tags, so start over rather than tracking usage
+        CACHE.clear();
+      }
+      CACHE.put(tag, result);
+    }
+
+    return result;
+  }
+
+  /**
+   * @param tag
+   * @return
+   */
+  private static TagStyle parse(String tag) {
+    String prefix = "";
+    String body = tag;
+    if (tag.startsWith("左に")) {
+      prefix = "左に";
+      body = tag.substring(2);
+    }
+
+    Suffix suffix =
+        body.length() >= SUFFIX_LENGTH
+            ? SUFFIXES.get(body.substring(body.length() - SUFFIX_LENGTH))
+            : null;
+
+    String type = body;
+    Style style;
+    boolean partial = false;
+
+    if (suffix == null) {
+      style = SIMPLE_STYLES.get(body);
+    } else {
+      switch (suffix) {
+        case START_MARGIN:
+          type = "字下げ";
+
+          if (body.indexOf('、') == -1) {
+            style = StartMarginStyle.of(parseWidth(body, 0));
+          } else {
+            style = StartMarginStyle.of(0);
+            partial = true;
+          }
+          break;
+
+        case END_MARGIN:
+          type = "字上げ";
+          style = EndMarginStyle.of(parseWidth(body, 3));
+          break;
+
+        case WIDTH:
+          type = "字詰め";
+          style = WidthStyle.of(parseWidth(body, 0));
+          break;
+
+        case FONT_SIZE:
+          int level = 1, kind;
+          if (body.length() > 5) {
+            type = body.substring(body.length() - 5);
+            level = Util.parseInt(body.substring(0, body.length() - 7));
+            kind = body.codePointAt(3);
+          } else {
+            kind = body.codePointAt(0);
+          }
+
+          style = FontSizeStyle.of(kind == '小' ? -level : level);
+          break;
+
+        case HEADING:
+          style = toHeading(body.codePointAt(body.length() - 4));
+          break;
+
+        default:
+          throw new AssertionError(suffix);
+      }
+    }
+
+    if (style == null) {
+      return new TagStyle(tag, null, false);
+    }
+
+    return new TagStyle(prefix + type, style, partial);
+  }
+
+  /**
+   * @param body
+   * @param start
+   * @return the number between {@code start} and the suffix.
+   */
+  private static int parseWidth(String body, int start) {
+    return Util.parseInt(body.substring(start, body.length() - SUFFIX_LENGTH));
+  }
+
+  /**
+   * @param size
+   * @return the style of the heading of {@code size}, or {@code null} if unknown.
+   */
+  private static Style toHeading(int size) {
+    switch (size) {
+      case '大':
+        return SimpleStyle.HeadingLarge;
+
+      case '中':
+        return SimpleStyle.HeadingMedium;
+
+      case '小':
+        return SimpleStyle.HeadingSmall;
+
+      default:
+        return null;
+    }
+  }
+}
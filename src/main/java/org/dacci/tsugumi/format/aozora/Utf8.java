@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.format.aozora;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Decode-only UTF-8 charset.
+ *
+ * <p>Runs of ASCII are copied straight into the output array, and the other sequences are decoded
+ * in place, for mapped files as well as arrays. The decoded text is identical to the JDK's UTF-8
+ * decoder for well-formed input; only the length reported for malformed input may differ.
+ *
+ * @author dacci
+ */
+final class Utf8 extends Charset {
+
+  static final Utf8 INSTANCE = new Utf8();
+
+  /**
+   * Returned by {@link #decodeSequence(int, int, int, int)} for a sequence cut by the end of the
+   * input.
+   */
+  static final int UNDERFLOW = Integer.MIN_VALUE;
+
+  private Utf8() {
+    super("x-tsugumi-UTF-8", null);
+  }
+
+  /**
+   * @param b1 the lead byte of a sequence, which must not be ASCII
+   * @return the number of bytes in the sequence.
+   */
+  static int sequenceLength(int b1) {
+    return b1 >= 0xF0 ? 4 : b1 >= 0xE0 ? 3 : 2;
+  }
+
+  /**
+   * @param b
+   * @return true if {@code b} is the trail byte of a sequence.
+   */
+  private static boolean isContinuation(int b) {
+    return (b & 0xC0) == 0x80;
+  }
+
+  /**
+   * Decodes a multi-byte sequence.
+   *
+   * @param b1 the lead byte, which must not be ASCII
+   * @param b2 the following byte, or -1 if the input ends before it
+   * @param b3 the byte after {@code b2}, or -1 if the input ends before it
+   * @param b4 the byte after {@code b3}, or -1 if the input ends before it
+   * @return the code point, {@link #UNDERFLOW} if the input ends in the middle of the sequence, or
+   *     the bitwise complement of the length of a malformed sequence.
+   */
+  static int decodeSequence(int b1, int b2, int b3, int b4) {
+    if (b1 < 0xC2 || b1 > 0xF4) {
+      return ~1;
+    }
+
+    if (b2 < 0) {
+      return UNDERFLOW;
+    }
+    if (!isContinuation(b2)
+        || b1 == 0xE0 && b2 < 0xA0
+        || b1 == 0xED && b2 > 0x9F
+        || b1 == 0xF0 && b2 < 0x90
+        || b1 == 0xF4 && b2 > 0x8F) {
+      return ~1;
+    }
+    if (b1 < 0xE0) {
+      return (b1 & 0x1F) << 6 | b2 & 0x3F;
+    }
+
+    if (b3 < 0) {
+      return UNDERFLOW;
+    }
+    if (!isContinuation(b3)) {
+      return ~2;
+    }
+    if (b1 < 0xF0) {
+      return (b1 & 0x0F) << 12 | (b2 & 0x3F) << 6 | b3 & 0x3F;
+    }
+
+    if (b4 < 0) {
+      return UNDERFLOW;
+    }
+    if (!isContinuation(b4)) {
+      return ~3;
+    }
+
+    return (b1 & 0x07) << 18 | (b2 & 0x3F) << 12 | (b3 & 0x3F) << 6 | b4 & 0x3F;
+  }
+
+  /**
+   * @param in
+   * @param index
+   * @param limit
+   * @return the byte at {@code index}, or -1 if not before {@code limit}.
+   */
+  static int byteAt(ByteBuffer in, int index, int limit) {
+    return index < limit ? in.get(index) & 0xFF : -1;
+  }
+
+  /**
+   * @param in
+   * @param index
+   * @param limit
+   * @return the byte at {@code index}, or -1 if not before {@code limit}.
+   */
+  static int byteAt(byte[] in, int index, int limit) {
+    return index < limit ? in[index] & 0xFF : -1;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean contains(Charset cs) {
+    return cs instanceof Utf8;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CharsetDecoder newDecoder() {
+    return new Decoder(this);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean canEncode() {
+    return false;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CharsetEncoder newEncoder() {
+    throw new UnsupportedOperationException();
+  }
+
+  /** Decodes with {@link Utf8#decodeSequence(int, int, int, int)}. */
+  private static final class Decoder extends CharsetDecoder {
+
+    private static final int SCRATCH_SIZE = 8192;
+
+    /** Bytes copied from a buffer without an accessible array. */
+    private byte[] scratch;
+
+    /**
+     * @param cs
+     */
+    Decoder(Charset cs) {
+      super(cs, 1.0f, 1.0f);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected CoderResult decodeLoop(ByteBuffer in, CharBuffer out) {
+      if (out.hasArray()) {
+        if (in.hasArray()) {
+          return decodeArrayLoop(in, out);
+        }
+
+        return decodeDirectLoop(in, out);
+      }
+
+      return decodeBufferLoop(in, out);
+    }
+
+    /**
+     * @param in
+     * @param out
+     * @return
+     */
+    private CoderResult decodeArrayLoop(ByteBuffer in, CharBuffer out) {
+      byte[] sa = in.array();
+      int sp = in.arrayOffset() + in.position();
+      int sl = in.arrayOffset() + in.limit();
+      char[] da = out.array();
+      int dp = out.arrayOffset() + out.position();
+      int dl = out.arrayOffset() + out.limit();
+
+      try {
+        while (sp < sl) {
+          if (sa[sp] >= 0) {
+            int end = sp + Math.min(sl - sp, dl - dp);
+            if (sp == end) {
+              return CoderResult.OVERFLOW;
+            }
+
+            do {
+              da[dp++] = (char) sa[sp++];
+            } while (sp < end && sa[sp] >= 0);
+            continue;
+          }
+
+          int b1 = sa[sp] & 0xFF;
+          int c =
+              decodeSequence(
+                  b1, byteAt(sa, sp + 1, sl), byteAt(sa, sp + 2, sl), byteAt(sa, sp + 3, sl));
+          if (c == UNDERFLOW) {
+            return CoderResult.UNDERFLOW;
+          } else if (c < 0) {
+            return CoderResult.malformedForLength(~c);
+          }
+
+          int next = put(c, da, dp, dl);
+          if (next < 0) {
+            return CoderResult.OVERFLOW;
+          }
+
+          dp = next;
+          sp += sequenceLength(b1);
+        }
+
+        return CoderResult.UNDERFLOW;
+      } finally {
+        in.position(sp - in.arrayOffset());
+        out.position(dp - out.arrayOffset());
+      }
+    }
+
+    /**
+     * Same as {@link #decodeArrayLoop(ByteBuffer, CharBuffer)} but reads bytes from a buffer
+     * without an accessible array, such as a mapped file, copying them to {@link #scratch} in bulk.
+     *
+     * @param in
+     * @param out
+     * @return
+     */
+    private CoderResult decodeDirectLoop(ByteBuffer in, CharBuffer out) {
+      if (scratch == null) {
+        scratch = new byte[SCRATCH_SIZE];
+      }
+
+      while (in.hasRemaining()) {
+        int start = in.position();
+        int length = Math.min(in.remaining(), scratch.length);
+        in.get(scratch, 0, length);
+
+        ByteBuffer chunk = ByteBuffer.wrap(scratch, 0, length);
+        CoderResult result = decodeArrayLoop(chunk, out);
+        in.position(start + chunk.position());
+
+        if (result.isOverflow() || result.isError()) {
+          return result;
+        }
+
+        if (chunk.hasRemaining() && in.remaining() == chunk.remaining()) {
+          // a sequence cut by the end of the input
+          break;
+        }
+      }
+
+      return CoderResult.UNDERFLOW;
+    }
+
+    /**
+     * @param c
+     * @param da
+     * @param dp
+     * @param dl
+     * @return the new position in {@code da}, or -1 if there is not enough room.
+     */
+    private static int put(int c, char[] da, int dp, int dl) {
+      if (c < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+        if (dp == dl) {
+          return -1;
+        }
+
+        da[dp++] = (char) c;
+      } else {
+        if (dl - dp < 2) {
+          return -1;
+        }
+
+        da[dp++] = Character.highSurrogate(c);
+        da[dp++] = Character.lowSurrogate(c);
+      }
+
+      return dp;
+    }
+
+    /**
+     * @param in
+     * @param out
+     * @return
+     */
+    private CoderResult decodeBufferLoop(ByteBuffer in, CharBuffer out) {
+      int sp = in.position();
+      int sl = in.limit();
+
+      try {
+        while (sp < sl) {
+          int b1 = in.get(sp) & 0xFF;
+          if (b1 < 0x80) {
+            if (!out.hasRemaining()) {
+              return CoderResult.OVERFLOW;
+            }
+
+            out.put((char) b1);
+            ++sp;
+            continue;
+          }
+
+          int c =
+              decodeSequence(
+                  b1, byteAt(in, sp + 1, sl), byteAt(in, sp + 2, sl), byteAt(in, sp + 3, sl));
+          if (c == UNDERFLOW) {
+            return CoderResult.UNDERFLOW;
+          } else if (c < 0) {
+            return CoderResult.malformedForLength(~c);
+          }
+
+          if (c < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            if (!out.hasRemaining()) {
+              return CoderResult.OVERFLOW;
+            }
+
+            out.put((char) c);
+          } else {
+            if (out.remaining() < 2) {
+              return CoderResult.OVERFLOW;
+            }
+
+            out.put(Character.highSurrogate(c));
+            out.put(Character.lowSurrogate(c));
+          }
+
+          sp += sequenceLength(b1);
+        }
+
+        return CoderResult.UNDERFLOW;
+      } finally {
+        in.position(sp);
+      }
+    }
+  }
+}
@@ -18,8 +18,14 @@ import java.nio.file.StandardCopyOption;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.StringJoiner;
@@ -41,14 +47,11 @@ import javax.xml.transform.stream.StreamResult;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.xml.serializer.OutputPropertiesFactory;
 import org.dacci.tsugumi.Util;
-import org.dacci.tsugumi.doc.Block;
 import org.dacci.tsugumi.doc.Book;
-import org.dacci.tsugumi.doc.BookElement;
 import org.dacci.tsugumi.doc.BookProperty;
-import org.dacci.tsugumi.doc.Chapter;
+import org.dacci.tsugumi.doc.DocumentWalker;
 import org.dacci.tsugumi.doc.EndMarginStyle;
 import org.dacci.tsugumi.doc.FontSizeStyle;
-import org.dacci.tsugumi.doc.Fragment;
 import org.dacci.tsugumi.doc.ImageMarker;
 import org.dacci.tsugumi.doc.Paragraph;
 import org.dacci.tsugumi.doc.RubySegment;
@@ -57,16 +60,18 @@ import org.dacci.tsugumi.doc.SimpleMarker;
 import org.dacci.tsugumi.doc.SimpleStyle;
 import org.dacci.tsugumi.doc.StartMarginStyle;
 import org.dacci.tsugumi.doc.Style;
+import org.dacci.tsugumi.doc.StyleSet;
 import org.dacci.tsugumi.doc.StyledSegment;
 import org.dacci.tsugumi.doc.TextSegment;
 import org.dacci.tsugumi.doc.WidthStyle;
+import org.dacci.tsugumi.format.BookBuilder;
+import org.dacci.tsugumi.format.BookSink;
 import org.dacci.tsugumi.format.BuildException;
 import org.dacci.tsugumi.format.Format;
 import org.dacci.tsugumi.format.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
-import org.w3c.dom.DocumentFragment;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -215,16 +220,28 @@ public class EPubFormat implements Format {
 
   private Document containerDocument = null;
 
-  private Book book = null;
+  /** The properties of the book being built, or {@code null} if not building. */
+  private EnumMap<BookProperty, String> properties = null;
 
   private int pages;
 
+  private int images;
+
   private Map<Path, Resource> resources = new LinkedHashMap<>();
 
+  private FileSystem fileSystem = null;
+
+  private Path outputFile = null;
+
   private List<Pair<String, Resource>> contents = new ArrayList<>();
 
   private Document packageDocument;
 
+  /** The class names of the style sets seen so far, which are mostly interned. */
+  private final Map<StyleSet, String> classNames = new IdentityHashMap<>();
+
+  private final ParagraphWalker paragraphWalker = new ParagraphWalker();
+
   /** {@inheritDoc} */
   @Override
   public void setProperty(String key, Object value) {
@@ -275,7 +292,7 @@ public class EPubFormat implements Format {
     head.appendChild(element);
 
     element = document.createElement("title");
-    element.setTextContent(book.getProperty(BookProperty.Title));
+    element.setTextContent(properties.get(BookProperty.Title));
     head.appendChild(element);
 
     element = document.createElement("link");
@@ -292,9 +309,40 @@ public class EPubFormat implements Format {
 
   /** {@inheritDoc} */
   @Override
-  public synchronized Path build(Book book) throws BuildException {
-    if (this.book == null) {
-      this.book = book;
+  public synchronized Path build(Book book) throws BuildException, ParseException {
+    Sink sink = open();
+    boolean done = false;
+
+    try {
+      BookBuilder.replay(book, sink);
+      done = true;
+    } catch (RuntimeException e) {
+      throw new BuildException(e);
+    } finally {
+      if (done) {
+        reset();
+      } else {
+        // a chapter may fail to parse after the output has been opened
+        sink.abort();
+      }
+    }
+
+    return sink.path;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized BookSink newSink() throws BuildException {
+    return open();
+  }
+
+  /**
+   * @return
+   * @throws BuildException
+   */
+  private Sink open() throws BuildException {
+    if (properties == null) {
+      properties = new EnumMap<>(BookProperty.class);
     } else {
       throw new IllegalStateException();
     }
@@ -303,6 +351,7 @@ public class EPubFormat implements Format {
       try {
         builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
       } catch (ParserConfigurationException e) {
+        properties = null;
         throw new BuildException(e);
       }
     }
@@ -314,6 +363,7 @@ public class EPubFormat implements Format {
         transformer.setOutputProperty(OutputKeys.INDENT, "yes");
         transformer.setOutputProperty(OutputPropertiesFactory.S_KEY_INDENT_AMOUNT, "2");
       } catch (TransformerException e) {
+        properties = null;
         throw new BuildException(e);
       }
     }
@@ -332,29 +382,31 @@ public class EPubFormat implements Format {
       container.appendChild(containerDocument.createElement("rootfiles")).appendChild(rootfile);
     }
 
-    try {
-      pages = 0;
+    pages = 0;
+    images = 0;
+    setupResources();
 
-      setupResources();
+    return new Sink();
+  }
 
-      for (Chapter chapter : book.chapters()) {
-        build(chapter);
+  /** Discards the state of the book being built. */
+  private void reset() {
+    if (fileSystem != null) {
+      try {
+        fileSystem.close();
+      } catch (IOException e) {
+        LOG.warn("failed to close {}", outputFile, e);
       }
-
-      buildNavigation();
-      buildPackage();
-
-      Path path = saveToFile();
-
-      resources.clear();
-      contents.clear();
-      packageDocument = null;
-      this.book = null;
-
-      return path;
-    } catch (RuntimeException e) {
-      throw new BuildException(e);
     }
+
+    fileSystem = null;
+    outputFile = null;
+    document = null;
+    resources.clear();
+    contents.clear();
+    packageDocument = null;
+    classNames.clear();
+    properties = null;
   }
 
   /** */
@@ -386,56 +438,66 @@ public class EPubFormat implements Format {
     resource.setPath(STYLE_PATH.resolve(resource.getId() + ".css"));
     resource.setMediaType("text/css");
     resources.put(resource.getPath(), resource);
+  }
 
-    int index = 0;
-    for (Path path : book.resources()) {
-      String extension = path.getFileName().toString();
-      int position = extension.lastIndexOf('.');
-      if (position == -1) {
-        LOG.warn("resource without extension: {}", path);
-        continue;
-      }
+  /**
+   * @param path
+   */
+  private void addImage(Path path) {
+    path = path.toAbsolutePath();
+    if (resources.containsKey(path)) {
+      return;
+    }
 
-      extension = extension.substring(position);
-      String id = String.format("item-%03d%s", ++index, extension);
+    String extension = path.getFileName().toString();
+    int position = extension.lastIndexOf('.');
+    if (position == -1) {
+      LOG.warn("resource without extension: {}", path);
+      return;
+    }
 
-      resource = new Resource();
-      resource.setId(id);
-      resource.setPath(IMAGE_PATH.resolve(id));
+    extension = extension.substring(position);
+    String id = String.format("item-%03d%s", ++images, extension);
 
-      switch (extension) {
-        case ".gif":
-          resource.setMediaType("image/gif");
-          break;
+    Resource resource = new Resource();
+    resource.setId(id);
+    resource.setPath(IMAGE_PATH.resolve(id));
 
-        case ".jpg":
-        case ".jpeg":
-          resource.setMediaType("image/jpeg");
-          break;
+    switch (extension) {
+      case ".gif":
+        resource.setMediaType("image/gif");
+        break;
 
-        case ".png":
-          resource.setMediaType("image/png");
-          break;
-      }
+      case ".jpg":
+      case ".jpeg":
+        resource.setMediaType("image/jpeg");
+        break;
 
-      resources.put(path, resource);
+      case ".png":
+        resource.setMediaType("image/png");
+        break;
     }
+
+    resources.put(path, resource);
   }
 
   /**
-   * @param chapter
+   * Finishes the document of a chapter and writes it out.
+   *
+   * @param body
+   * @param main
+   * @param title
+   * @param styles
    * @throws BuildException
    */
-  private void build(Chapter chapter) throws BuildException {
-    Element body = newHTMLDocument();
-    document = body.getOwnerDocument();
+  private void build(Element body, Element main, String title, Collection<Style> styles)
+      throws BuildException {
     ((Element) document.getFirstChild()).setAttribute("class", "vrtl");
 
     DocumentResource resource = new DocumentResource();
     resource.setDocument(document);
     resource.setMediaType("application/xhtml+xml");
 
-    String title = chapter.getProperty(BookProperty.Title);
     if (title != null) {
       switch (title) {
         case "表紙":
@@ -466,9 +528,7 @@ public class EPubFormat implements Format {
     }
     resource.setPath(XHTML_PATH.resolve(resource.getId() + ".xhtml"));
 
-    Element main = build(chapter.getRoot());
-
-    String className = main.getAttribute("class");
+    String className = toClassNames(styles);
     if (className.isEmpty()) {
       className = "main";
     } else {
@@ -479,120 +539,123 @@ public class EPubFormat implements Format {
     body.appendChild(main);
     contents.add(Pair.of(title, resource));
 
+    // the document is no longer needed once written
+    save(resource, null);
+    resource.setDocument(null);
+
     document = null;
   }
 
   /**
-   * @param paragraph
-   * @throws BuildException
+   * @param styles
+   * @return the class names of the styles separated by spaces.
    */
-  private Element build(BookElement element) throws BuildException {
-    Element result = null;
+  private static String toClassNames(Iterable<Style> styles) {
+    StringJoiner joiner = new StringJoiner(" ");
+    for (Style style : styles) {
+      String className = mapToClassName(style);
+      if (className != null) {
+        joiner.add(className);
+      }
+    }
 
-    if (element instanceof Block) {
-      result = document.createElement("div");
+    return joiner.toString();
+  }
 
-      StringJoiner joiner = new StringJoiner(" ");
-      for (Style style : ((Block) element).styles()) {
-        String className = mapToClassName(style);
-        if (className != null) {
-          joiner.add(className);
-        }
-      }
-      if (joiner.length() > 0) {
-        result.setAttribute("class", joiner.toString());
-      }
+  /**
+   * @param styles
+   * @return the class names of the styles separated by spaces.
+   */
+  private String toClassNames(StyleSet styles) {
+    String result = classNames.get(styles);
+    if (result == null) {
+      result = toClassNames((Iterable<Style>) styles);
+      classNames.put(styles, result);
+    }
 
-      for (BookElement child : ((Block) element).elements()) {
-        result.appendChild(build(child));
-      }
-    } else if (element instanceof Paragraph) {
-      StringJoiner joiner = new StringJoiner(" ");
-      for (Style style : ((Paragraph) element).styles()) {
-        String className = mapToClassName(style);
-        if (className != null) {
-          joiner.add(className);
-        }
-      }
+    return result;
+  }
 
-      if (result == null) {
-        result = document.createElement("p");
-      }
+  /**
+   * @param paragraph
+   * @throws BuildException
+   */
+  private Element build(Paragraph paragraph) throws BuildException {
+    Element result = document.createElement("p");
 
-      if (joiner.length() > 0) {
-        result.setAttribute("class", joiner.toString());
-      }
+    String className = toClassNames(paragraph.styles());
+    if (!className.isEmpty()) {
+      result.setAttribute("class", className);
+    }
 
-      for (Segment segment : ((Paragraph) element).getFragment()) {
-        result.appendChild(build(segment));
-      }
-    } else {
-      throw new BuildException("Unsupported element: " + element.getClass());
+    paragraphWalker.parents.push(result);
+    try {
+      paragraphWalker.walk(paragraph.getFragment());
+    } finally {
+      paragraphWalker.parents.clear();
     }
 
     return result;
   }
 
-  private Node build(Segment segment) throws BuildException {
-    if (segment instanceof Fragment) {
-      DocumentFragment fragment = document.createDocumentFragment();
+  /** Builds the nodes of the segments of a paragraph into the element on top of the stack. */
+  private final class ParagraphWalker extends DocumentWalker<BuildException> {
 
-      for (Segment child : (Fragment) segment) {
-        fragment.appendChild(build(child));
-      }
+    private final Deque<Element> parents = new LinkedList<>();
 
-      return fragment;
-    } else if (segment instanceof TextSegment) {
-      return document.createTextNode(((TextSegment) segment).getText());
-    } else if (segment instanceof RubySegment) {
-      RubySegment rubySegment = (RubySegment) segment;
-      Element element = document.createElement("ruby");
+    /** {@inheritDoc} */
+    @Override
+    protected void text(TextSegment segment) {
+      parents.peek().appendChild(document.createTextNode(segment.getText()));
+    }
 
-      Node textNode = build(rubySegment.getText());
-      element.appendChild(textNode);
+    /** {@inheritDoc} */
+    @Override
+    protected void startRuby(RubySegment segment) {
+      parents.push((Element) parents.peek().appendChild(document.createElement("ruby")));
+    }
 
+    /** {@inheritDoc} */
+    @Override
+    protected void endRuby(RubySegment segment) {
       Element rubyElement = document.createElement("rt");
-      rubyElement.setTextContent(rubySegment.getRuby());
-      element.appendChild(rubyElement);
-
-      return element;
-    } else if (segment instanceof StyledSegment) {
-      StyledSegment styledSegment = (StyledSegment) segment;
-      StringJoiner joiner = new StringJoiner(" ");
-      Element element = null;
-
-      for (Style style : styledSegment.styles()) {
-        String className = mapToClassName(style);
-        if (className != null) {
-          joiner.add(className);
-        }
-      }
+      rubyElement.setTextContent(segment.getRuby());
+      parents.pop().appendChild(rubyElement);
+    }
 
-      if (element == null) {
-        element = document.createElement("span");
-      }
+    /** {@inheritDoc} */
+    @Override
+    protected void startStyled(StyledSegment segment) {
+      Element element = document.createElement("span");
 
-      if (joiner.length() > 0) {
-        element.setAttribute("class", joiner.toString());
+      String className = toClassNames(segment.styles());
+      if (!className.isEmpty()) {
+        element.setAttribute("class", className);
       }
 
-      element.appendChild(build(styledSegment.getSegment()));
+      parents.push((Element) parents.peek().appendChild(element));
+    }
 
-      return element;
-    } else if (segment instanceof ImageMarker) {
-      ImageMarker imageSegment = (ImageMarker) segment;
+    /** {@inheritDoc} */
+    @Override
+    protected void endStyled(StyledSegment segment) {
+      parents.pop();
+    }
 
+    /** {@inheritDoc} */
+    @Override
+    protected void image(ImageMarker marker) throws BuildException {
       Element element = document.createElement("img");
 
-      Resource resource = resources.get(imageSegment.getFile());
+      Resource resource = resources.get(marker.getFile());
       if (resource == null) {
-        throw new BuildException("resource not found: " + imageSegment.getFile());
+        throw new BuildException("resource not found: " + marker.getFile());
       }
 
       Path path = XHTML_PATH.relativize(resource.getPath());
       element.setAttribute("src", path.toString().replace('\\', '/'));
 
-      String caption = imageSegment.getCaption();
+      String caption = marker.getCaption();
       if (caption != null) {
         element.setAttribute("alt", caption);
         element.setAttribute("title", caption);
@@ -602,26 +665,35 @@ public class EPubFormat implements Format {
         }
       }
 
-      if (imageSegment.getWidth() >= 0) {
-        element.setAttribute("width", String.valueOf(imageSegment.getWidth()));
+      if (marker.getWidth() >= 0) {
+        element.setAttribute("width", String.valueOf(marker.getWidth()));
       }
 
-      if (imageSegment.getHeight() >= 0) {
-        element.setAttribute("height", String.valueOf(imageSegment.getHeight()));
+      if (marker.getHeight() >= 0) {
+        element.setAttribute("height", String.valueOf(marker.getHeight()));
       }
 
-      return element;
-    } else if (segment instanceof SimpleMarker) {
-      switch ((SimpleMarker) segment) {
+      parents.peek().appendChild(element);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void marker(SimpleMarker marker) {
+      switch (marker) {
         case LineBreak:
-          return document.createElement("br");
+          parents.peek().appendChild(document.createElement("br"));
+          break;
 
         default:
           throw new UnsupportedOperationException();
       }
-    } else {
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void other(Segment segment) {
       LOG.warn("Unsupported segment: {}", segment.getClass());
-      return document.createTextNode(segment.toString());
+      parents.peek().appendChild(document.createTextNode(segment.toString()));
     }
   }
 
@@ -695,9 +767,9 @@ public class EPubFormat implements Format {
 
     element = document.createElement("dc:title");
     element.setAttribute("id", "title");
-    element.setTextContent(book.getProperty(BookProperty.Title));
+    element.setTextContent(properties.get(BookProperty.Title));
     metadata.appendChild(element);
-    joiner.add(book.getProperty(BookProperty.Title));
+    joiner.add(properties.get(BookProperty.Title));
 
     element = document.createElement("meta");
     element.setAttribute("refines", "#title");
@@ -705,12 +777,12 @@ public class EPubFormat implements Format {
     element.setTextContent("main");
     metadata.appendChild(element);
 
-    if (book.hasProperty(BookProperty.Subtitle)) {
+    if (properties.containsKey(BookProperty.Subtitle)) {
       element = document.createElement("dc:title");
       element.setAttribute("id", "subtitle");
-      element.setTextContent(book.getProperty(BookProperty.Subtitle));
+      element.setTextContent(properties.get(BookProperty.Subtitle));
       metadata.appendChild(element);
-      joiner.add(book.getProperty(BookProperty.Subtitle));
+      joiner.add(properties.get(BookProperty.Subtitle));
 
       element = document.createElement("meta");
       element.setAttribute("refines", "#subtitle");
@@ -721,9 +793,9 @@ public class EPubFormat implements Format {
 
     element = document.createElement("dc:creator");
     element.setAttribute("id", "author");
-    element.setTextContent(book.getProperty(BookProperty.Author));
+    element.setTextContent(properties.get(BookProperty.Author));
     metadata.appendChild(element);
-    joiner.add(book.getProperty(BookProperty.Author));
+    joiner.add(properties.get(BookProperty.Author));
 
     element = document.createElement("meta");
     element.setAttribute("refines", "#author");
@@ -732,12 +804,12 @@ public class EPubFormat implements Format {
     element.appendChild(document.createTextNode("aut"));
     metadata.appendChild(element);
 
-    if (book.hasProperty(BookProperty.Translator)) {
+    if (properties.containsKey(BookProperty.Translator)) {
       element = document.createElement("dc:creator");
       element.setAttribute("id", "translator");
-      element.setTextContent(book.getProperty(BookProperty.Translator));
+      element.setTextContent(properties.get(BookProperty.Translator));
       metadata.appendChild(element);
-      joiner.add(book.getProperty(BookProperty.Translator));
+      joiner.add(properties.get(BookProperty.Translator));
 
       element = document.createElement("meta");
       element.setAttribute("refines", "#translator");
@@ -747,8 +819,8 @@ public class EPubFormat implements Format {
       metadata.appendChild(element);
     }
 
-    if (book.hasProperty(BookProperty.Series)) {
-      String series = book.getProperty(BookProperty.Series);
+    if (properties.containsKey(BookProperty.Series)) {
+      String series = properties.get(BookProperty.Series);
 
       element = document.createElement("meta");
       element.setAttribute("id", "series");
@@ -769,8 +841,8 @@ public class EPubFormat implements Format {
       element.setAttribute("content", series);
       metadata.appendChild(element);
 
-      if (book.hasProperty(BookProperty.SeriesPosition)) {
-        String position = book.getProperty(BookProperty.SeriesPosition);
+      if (properties.containsKey(BookProperty.SeriesPosition)) {
+        String position = properties.get(BookProperty.SeriesPosition);
 
         element = document.createElement("meta");
         element.setAttribute("refines", "#series");
@@ -787,13 +859,13 @@ public class EPubFormat implements Format {
       }
     }
 
-    if (book.hasProperty(BookProperty.Set)) {
+    if (properties.containsKey(BookProperty.Set)) {
       element = document.createElement("meta");
       element.setAttribute("id", "set");
       element.setAttribute("property", "belongs-to-collection");
-      element.setTextContent(book.getProperty(BookProperty.Set));
+      element.setTextContent(properties.get(BookProperty.Set));
       metadata.appendChild(element);
-      joiner.add(book.getProperty(BookProperty.Set));
+      joiner.add(properties.get(BookProperty.Set));
 
       element = document.createElement("meta");
       element.setAttribute("refines", "#set");
@@ -801,13 +873,13 @@ public class EPubFormat implements Format {
       element.setTextContent("set");
       metadata.appendChild(element);
 
-      if (book.hasProperty(BookProperty.SetPosition)) {
+      if (properties.containsKey(BookProperty.SetPosition)) {
         element = document.createElement("meta");
         element.setAttribute("refines", "#set");
         element.setAttribute("property", "group-position");
-        element.setTextContent(book.getProperty(BookProperty.SetPosition));
+        element.setTextContent(properties.get(BookProperty.SetPosition));
         metadata.appendChild(element);
-        joiner.add(book.getProperty(BookProperty.SetPosition));
+        joiner.add(properties.get(BookProperty.SetPosition));
       }
     }
 
@@ -875,15 +947,16 @@ public class EPubFormat implements Format {
   }
 
   /**
-   * @return
+   * Creates the output file and the directories in it.
+   *
    * @throws BuildException
    */
-  private Path saveToFile() throws BuildException {
+  private void openOutput() throws BuildException {
     String fileName =
         String.format(
             "%s - %s.epub",
-            Util.safeFileName(book.getProperty(BookProperty.Author)),
-            Util.safeFileName(book.getProperty(BookProperty.Title)));
+            Util.safeFileName(properties.get(BookProperty.Author)),
+            Util.safeFileName(properties.get(BookProperty.Title)));
     Path path = outputPath.resolve(fileName);
 
     try (ZipOutputStream stream = new ZipOutputStream(Files.newOutputStream(path))) {
@@ -901,35 +974,31 @@ public class EPubFormat implements Format {
       throw new BuildException(e);
     }
 
-    try (FileSystem fileSystem =
-        FileSystems.newFileSystem(URI.create("jar:" + path.toUri()), Collections.emptyMap())) {
-      save(fileSystem.getPath("/"));
+    try {
+      fileSystem =
+          FileSystems.newFileSystem(URI.create("jar:" + path.toUri()), Collections.emptyMap());
+      outputFile = path;
+
+      Path itemPath = fileSystem.getPath("item");
+      Files.createDirectories(fileSystem.getPath("META-INF"));
+      Files.createDirectories(itemPath.resolve("style"));
+      Files.createDirectories(itemPath.resolve("image"));
+      Files.createDirectories(itemPath.resolve("xhtml"));
     } catch (IOException e) {
       throw new BuildException(e);
     }
-
-    return path;
   }
 
   /**
-   * @param fileSystem
+   * Writes everything but the chapters, which have been written already, and closes the output
+   * file.
+   *
+   * @return the output file
+   * @throws BuildException
    */
-  private void save(Path rootPath) throws BuildException {
-    FileSystem fileSystem = rootPath.getFileSystem();
+  private Path saveToFile() throws BuildException {
     Path metaInfPath = fileSystem.getPath("META-INF");
     Path itemPath = fileSystem.getPath("item");
-    Path stylePath = itemPath.resolve("style");
-    Path imagePath = itemPath.resolve("image");
-    Path xhtmlPath = itemPath.resolve("xhtml");
-
-    try {
-      Files.createDirectories(metaInfPath);
-      Files.createDirectories(stylePath);
-      Files.createDirectories(imagePath);
-      Files.createDirectories(xhtmlPath);
-    } catch (IOException e) {
-      throw new BuildException(e);
-    }
 
     try (OutputStream stream = Files.newOutputStream(metaInfPath.resolve("container.xml"))) {
       transformer.transform(new DOMSource(containerDocument), new StreamResult(stream));
@@ -943,31 +1012,187 @@ public class EPubFormat implements Format {
       throw new BuildException(e);
     }
 
-    ClassLoader classLoader = getClass().getClassLoader();
-
     for (Map.Entry<Path, Resource> entry : resources.entrySet()) {
       Resource resource = entry.getValue();
+      if (resource instanceof DocumentResource
+          && ((DocumentResource) resource).getDocument() == null) {
+        continue;
+      }
 
-      Path path = rootPath;
-      for (Path name : resource.getPath()) {
-        path = path.resolve(name.getFileName().toString());
+      save(resource, entry.getKey());
+    }
+
+    Path path = outputFile;
+    try {
+      fileSystem.close();
+    } catch (IOException e) {
+      throw new BuildException(e);
+    } finally {
+      fileSystem = null;
+    }
+
+    return path;
+  }
+
+  /**
+   * @param resource
+   * @param source the file to copy for a resource other than a document or a style sheet
+   * @throws BuildException
+   */
+  private void save(Resource resource, Path source) throws BuildException {
+    Path path = fileSystem.getPath("/");
+    for (Path name : resource.getPath()) {
+      path = path.resolve(name.getFileName().toString());
+    }
+
+    try {
+      if (resource instanceof DocumentResource) {
+        try (OutputStream out = Files.newOutputStream(path)) {
+          transformer.transform(
+              new DOMSource(((DocumentResource) resource).getDocument()), new StreamResult(out));
+        }
+      } else if (resource.getMediaType().equals("text/css")) {
+        try (InputStream in =
+            getClass().getClassLoader().getResourceAsStream(path.getFileName().toString())) {
+          Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+      } else {
+        Files.copy(source, path, StandardCopyOption.REPLACE_EXISTING);
       }
+    } catch (IOException | TransformerException e) {
+      throw new BuildException(e);
+    }
+  }
+
+  /** Builds the book from the events as they arrive. */
+  private final class Sink implements BookSink {
+
+    private final Deque<Element> elementStack = new LinkedList<>();
+
+    private final Collection<Style> chapterStyles = new LinkedHashSet<>();
+
+    private Element body;
+
+    private String chapterTitle;
+
+    private Path path;
+
+    /** {@inheritDoc} */
+    @Override
+    public void startBook() {}
+
+    /** {@inheritDoc} */
+    @Override
+    public void property(BookProperty key, String value) {
+      properties.put(key, value);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void resource(Path path) {
+      addImage(path);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void startChapter() throws BuildException {
+      if (fileSystem == null) {
+        openOutput();
+      }
+
+      body = newHTMLDocument();
+      document = body.getOwnerDocument();
+
+      elementStack.clear();
+      elementStack.push(document.createElement("div"));
+      chapterStyles.clear();
+      chapterTitle = null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void chapterProperty(BookProperty key, String value) {
+      if (key == BookProperty.Title) {
+        chapterTitle = value;
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void chapterStyle(Style style) {
+      chapterStyles.add(style);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void startBlock(Collection<Style> styles) {
+      Element element = document.createElement("div");
+
+      String className = toClassNames(StyleSet.of(styles));
+      if (!className.isEmpty()) {
+        element.setAttribute("class", className);
+      }
+
+      elementStack.peek().appendChild(element);
+      elementStack.push(element);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void paragraph(Paragraph paragraph) throws BuildException {
+      elementStack.peek().appendChild(build(paragraph));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void endBlock() {
+      elementStack.pop();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void endChapter() throws BuildException {
+      build(body, elementStack.getLast(), chapterTitle, chapterStyles);
 
+      elementStack.clear();
+      body = null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void endBook() throws BuildException {
+      boolean done = false;
       try {
-        if (resource instanceof DocumentResource) {
-          try (OutputStream out = Files.newOutputStream(path)) {
-            transformer.transform(
-                new DOMSource(((DocumentResource) resource).getDocument()), new StreamResult(out));
-          }
-        } else if (resource.getMediaType().equals("text/css")) {
-          try (InputStream in = classLoader.getResourceAsStream(path.getFileName().toString())) {
-            Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
-          }
+        if (fileSystem == null) {
+          openOutput();
+        }
+
+        buildNavigation();
+        buildPackage();
+
+        path = saveToFile();
+        done = true;
+      } finally {
+        if (done) {
+          reset();
         } else {
-          Files.copy(entry.getKey(), path, StandardCopyOption.REPLACE_EXISTING);
+          abort();
+        }
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void abort() {
+      Path output = outputFile;
+      reset();
+
+      if (output != null) {
+        try {
+          Files.deleteIfExists(output);
+        } catch (IOException e) {
+          LOG.warn("failed to delete {}", output, e);
         }
-      } catch (IOException | TransformerException e) {
-        throw new BuildException(e);
       }
     }
   }
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2015 dacci.org
+ */
+
+package org.dacci.tsugumi.doc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the tree of {@link Fragment} against a list of segments edited the way the fragment was
+ * edited before it was a tree, except that empty segments are never kept.
+ *
+ * @author dacci
+ */
+public class FragmentTest {
+
+  @Test
+  public void testEmpty() {
+    Fragment fragment = new Fragment(Collections.<Segment>emptyList());
+    assertEquals(0, fragment.length());
+    assertEquals("", fragment.toString());
+    assertFalse(fragment.iterator().hasNext());
+    assertEquals(0, fragment.verifyTree());
+    assertEquals(0, fragment.subSequence(0, 0).length());
+
+    Fragment replaced = fragment.replace(0, 0, new TextSegment("abc"));
+    assertEquals(Arrays.asList("abc"), segments(replaced));
+    assertEquals(1, replaced.verifyTree());
+
+    assertEquals(0, fragment.replace(0, 0, null).length());
+
+    try {
+      fragment.replace(0, 1, null);
+      fail();
+    } catch (StringIndexOutOfBoundsException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testEmptySegmentsDropped() {
+    Fragment fragment =
+        new Fragment(
+            Arrays.asList(new TextSegment(""), new TextSegment("ab"), new TextSegment("")));
+    assertEquals(Arrays.asList("ab"), segments(fragment));
+    // the segment is split at the range even if nothing is inserted
+    assertEquals(Arrays.asList("a", "b"), segments(fragment.replace(1, 1, new TextSegment(""))));
+  }
+
+  @Test
+  public void testSplitAtEnds() {
+    Fragment fragment = fragment("ab", "cd", "ef");
+    int length = fragment.length();
+
+    assertEquals("abcdef", fragment.subSequence(0, length).toString());
+    assertEquals(0, fragment.subSequence(0, 0).length());
+    assertEquals(0, fragment.subSequence(length, length).length());
+
+    assertEquals(Arrays.asList("x", "ab", "cd", "ef"), segments(fragment.replace(0, 0, text("x"))));
+    assertEquals(
+        Arrays.asList("ab", "cd", "ef", "x"),
+        segments(fragment.replace(length, length, text("x"))));
+    assertEquals(Arrays.asList("x"), segments(fragment.replace(0, length, text("x"))));
+    assertEquals(0, fragment.replace(0, length, null).length());
+
+    try {
+      fragment.replace(0, length + 1, null);
+      fail();
+    } catch (StringIndexOutOfBoundsException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testSegmentBoundaries() {
+    Fragment fragment = fragment("ab", "cd", "ef");
+
+    assertEquals(Arrays.asList("ab", "x", "ef"), segments(fragment.replace(2, 4, text("x"))));
+    assertEquals(Arrays.asList("a", "x", "ef"), segments(fragment.replace(1, 4, text("x"))));
+    assertEquals(Arrays.asList("ab", "x", "f"), segments(fragment.replace(2, 5, text("x"))));
+    assertEquals(
+        Arrays.asList("a", "x", "b", "cd", "ef"), segments(fragment.replace(1, 1, text("x"))));
+
+    // a range within a segment is taken from the segment
+    Segment sub = fragment.subSequence(2, 4);
+    assertTrue(sub instanceof TextSegment);
+    assertEquals("cd", sub.toString());
+    assertEquals(Arrays.asList("b", "cd", "e"), segments((Fragment) fragment.subSequence(1, 5)));
+  }
+
+  @Test
+  public void testAdjacentReplaces() {
+    Fragment fragment = fragment("abcdef", "ghij");
+    List<Segment> model = model(fragment);
+
+    int[][] ranges = {{2, 4}, {3, 5}, {3, 3}, {4, 4}, {0, 3}, {3, 6}, {6, 9}};
+    for (int[] range : ranges) {
+      Segment replacement = text("<" + range[0] + ">");
+      fragment = fragment.replace(range[0], range[1], replacement);
+      replace(model, range[0], range[1], replacement);
+
+      assertEquals(strings(model), segments(fragment));
+      fragment.verifyTree();
+    }
+  }
+
+  @Test
+  public void testReplaceKeepsOriginal() {
+    Fragment fragment = fragment("ab", "cd", "ef");
+    fragment.replace(1, 5, text("x"));
+    assertEquals(Arrays.asList("ab", "cd", "ef"), segments(fragment));
+  }
+
+  @Test
+  public void testManyInserts() {
+    Random random = new Random(1);
+    Fragment fragment = new Fragment(Collections.<Segment>emptyList());
+    List<Segment> model = new ArrayList<>();
+
+    int count = 20000;
+    for (int i = 0; i < count; ++i) {
+      int index;
+      switch (i % 3) {
+        case 0:
+          index = 0;
+          break;
+
+        case 1:
+          index = fragment.length();
+          break;
+
+        default:
+          index = random.nextInt(fragment.length() + 1);
+          break;
+      }
+
+      Segment segment = text(Integer.toString(i));
+      fragment = fragment.replace(index, index, segment);
+      replace(model, index, index, segment);
+    }
+
+    assertEquals(strings(model), segments(fragment));
+
+    // an AVL tree of n nodes is lower than 1.44 log2(n + 2)
+    int height = fragment.verifyTree();
+    int nodes = model.size();
+    assertTrue(height < 1.44 * Math.log(nodes + 2) / Math.log(2));
+  }
+
+  @Test
+  public void testRandomReplaces() {
+    Random random = new Random(2);
+    Fragment fragment = fragment("abcdefghij", "klmnop", "qrstuvwxyz");
+    List<Segment> model = model(fragment);
+
+    for (int i = 0; i < 5000; ++i) {
+      int length = fragment.length();
+      int start = random.nextInt(length + 1);
+      int end = start + random.nextInt(Math.min(length - start, 8) + 1);
+      Segment replacement = random.nextInt(4) == 0 ? null : text("#" + i);
+
+      fragment = fragment.replace(start, end, replacement);
+      replace(model, start, end, replacement);
+
+      fragment.verifyTree();
+      String text = join(model);
+      assertEquals(text, fragment.toString());
+      assertEquals(text.length(), fragment.length());
+
+      if (text.length() > 0) {
+        int index = random.nextInt(text.length());
+        assertEquals(text.charAt(index), fragment.charAt(index));
+
+        int subEnd = index + random.nextInt(text.length() - index + 1);
+        assertEquals(text.substring(index, subEnd), fragment.subSequence(index, subEnd).toString());
+      }
+    }
+
+    assertEquals(strings(model), segments(fragment));
+  }
+
+  @Test
+  public void testSharedSegments() {
+    Segment first = text("ab");
+    Segment last = text("cd");
+    Fragment fragment = new Fragment(Arrays.asList(first, text("xy"), last));
+    Fragment replaced = fragment.replace(2, 4, text("z"));
+
+    List<Segment> children = new ArrayList<>();
+    for (Segment segment : replaced) {
+      children.add(segment);
+    }
+    assertSame(first, children.get(0));
+    assertSame(last, children.get(2));
+  }
+
+  private static Segment text(String text) {
+    return new TextSegment(text);
+  }
+
+  private static Fragment fragment(String... texts) {
+    List<Segment> segments = new ArrayList<>();
+    for (String text : texts) {
+      segments.add(text(text));
+    }
+
+    return new Fragment(segments);
+  }
+
+  private static List<Segment> model(Fragment fragment) {
+    List<Segment> model = new ArrayList<>();
+    for (Segment segment : fragment) {
+      model.add(segment);
+    }
+
+    return model;
+  }
+
+  private static List<String> segments(Fragment fragment) {
+    return strings(model(fragment));
+  }
+
+  private static List<String> strings(List<Segment> segments) {
+    List<String> strings = new ArrayList<>();
+    for (Segment segment : segments) {
+      strings.add(segment.toString());
+    }
+
+    return strings;
+  }
+
+  private static String join(List<Segment> segments) {
+    StringBuilder builder = new StringBuilder();
+    for (Segment segment : segments) {
+      segment.toString(builder);
+    }
+
+    return builder.toString();
+  }
+
+  /** Replaces the range as the map of segments by their offsets used to. */
+  private static void replace(List<Segment> model, int start, int end, Segment replacement) {
+    int from = splitAt(model, start);
+    int to = splitAt(model, end);
+    model.subList(from, to).clear();
+    if (replacement != null && replacement.length() > 0) {
+      model.add(from, replacement);
+    }
+  }
+
+  /**
+   * @return the index of the first segment at or after {@code index}, after splitting the segment
+   *     containing it.
+   */
+  private static int splitAt(List<Segment> model, int index) {
+    int offset = 0;
+    for (int i = 0; i < model.size(); ++i) {
+      if (offset == index) {
+        return i;
+      }
+
+      Segment segment = model.get(i);
+      int length = segment.length();
+      if (index < offset + length) {
+        model.set(i, segment.subSequence(0, index - offset));
+        model.add(i + 1, segment.subSequence(index - offset, length));
+        return i + 1;
+      }
+
+      offset += length;
+    }
+
+    return model.size();
+  }
+}